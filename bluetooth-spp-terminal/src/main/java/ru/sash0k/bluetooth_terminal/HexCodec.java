@@ -0,0 +1,144 @@
+package ru.sash0k.bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * Hex 编码/解码
+ * 查表实现，结果直接写入调用者提供的数组或 StringBuilder，不创建中间字符串。
+ * 解码时输入必须是偶数个 0-9、A-F、a-f 字符，否则抛出 IllegalArgumentException。
+ */
+public final class HexCodec {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    // 字符 -> 数值，-1 表示不是 hex 字符
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            VALUES['A' + i] = (byte) (10 + i);
+            VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+    // ==========================================================================
+
+
+    /**
+     * 解码后的字节数
+     *
+     * @throws IllegalArgumentException 字符数为奇数
+     */
+    public static int decodedLength(int chars) {
+        if ((chars & 1) != 0) {
+            throw new IllegalArgumentException("Odd number of hex digits: " + chars);
+        }
+        return chars >> 1;
+    }
+
+    /**
+     * 解码整个字符串，数组大小正好等于字节数
+     *
+     * @throws IllegalArgumentException 字符数为奇数或者有非 hex 字符
+     */
+    public static byte[] decode(CharSequence hex) {
+        final byte[] result = new byte[decodedLength(hex.length())];
+        decode(hex, 0, hex.length(), result, 0);
+        return result;
+    }
+
+    /**
+     * 解码 hex[start, end) 到 out[outOffset]
+     *
+     * @return 写入的字节数
+     * @throws IllegalArgumentException 字符数为奇数或者有非 hex 字符
+     */
+    public static int decode(CharSequence hex, int start, int end, byte[] out, int outOffset) {
+        final int length = decodedLength(end - start);
+        if (out.length - outOffset < length) {
+            throw new IllegalArgumentException("Output buffer too small: " + (out.length - outOffset) + " < " + length);
+        }
+        int o = outOffset;
+        for (int i = start; i < end; i += 2) {
+            out[o++] = (byte) ((digit(hex, i) << 4) | digit(hex, i + 1));
+        }
+        return length;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 编码 data[offset, offset + length) 到 out[outOffset]，每个字节两个大写字符
+     *
+     * @return 写入的字符数
+     */
+    public static int encode(byte[] data, int offset, int length, char[] out, int outOffset) {
+        int o = outOffset;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final int b = data[i] & 0xFF;
+            out[o++] = DIGITS[b >>> 4];
+            out[o++] = DIGITS[b & 0x0F];
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * 一个字节写成两个大写 hex 字符（ASCII）
+     *
+     * @return 写入的字节数
+     */
+    public static int encodeByte(int b, byte[] out, int offset) {
+        out[offset] = (byte) DIGITS[(b >>> 4) & 0x0F];
+        out[offset + 1] = (byte) DIGITS[b & 0x0F];
+        return 2;
+    }
+
+    /**
+     * 日志显示格式，每个字节 "0xAB "。接收的数据块可以依次追加到同一个 StringBuilder
+     */
+    public static StringBuilder appendDisplay(StringBuilder sb, byte[] data, int offset, int length) {
+        sb.ensureCapacity(sb.length() + length * 5);
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final int b = data[i] & 0xFF;
+            sb.append('0').append('x').append(DIGITS[b >>> 4]).append(DIGITS[b & 0x0F]).append(' ');
+        }
+        return sb;
+    }
+
+    /**
+     * 输入的 hex 命令按显示格式追加，每两个字符 "0xAB "。只用于显示，不检查字符，
+     * 最后多出的一个字符单独显示
+     */
+    public static StringBuilder appendDisplay(StringBuilder sb, CharSequence hex) {
+        final int length = hex.length();
+        sb.ensureCapacity(sb.length() + (length + 1) / 2 * 5);
+        for (int i = 0; i < length; i += 2) {
+            sb.append('0').append('x').append(Character.toUpperCase(hex.charAt(i)));
+            if (i + 1 < length) sb.append(Character.toUpperCase(hex.charAt(i + 1)));
+            sb.append(' ');
+        }
+        return sb;
+    }
+    // ==========================================================================
+
+
+    /**
+     * hex 字符的值，不是 hex 字符时返回 -1。c 可以是 char 或 ASCII 字节
+     */
+    public static int digitValue(int c) {
+        return (c >= 0 && c < 128) ? VALUES[c] : -1;
+    }
+
+    private static int digit(CharSequence hex, int index) {
+        final char c = hex.charAt(index);
+        final int value = digitValue(c);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid hex digit '" + c + "' at " + index);
+        }
+        return value;
+    }
+}
@@ -7,12 +7,17 @@ import android.text.InputFilter;
 import android.text.Spanned;
 import android.util.Log;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Вспомогательные методы
  * Created by sash0k on 29.01.14.
  */
 public class Utils {
 
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
     /**
      * Общий метод вывода отладочных сообщений в лог
      */
@@ -34,19 +39,16 @@ public class Utils {
      * Конвертация hex-команд в строку для отображения
      */
     public static String printHex(String hex) {
-        StringBuilder sb = new StringBuilder();
-        int len = hex.length();
-        try {
-            for (int i = 0; i < len; i += 2) {
-                sb.append("0x").append(hex.substring(i, i + 2)).append(" ");
-            }
-        } catch (NumberFormatException e) {
-            log("printHex NumberFormatException: " + e.getMessage());
+        return HexCodec.appendDisplay(new StringBuilder(), hex).toString();
+    }
+    // ============================================================================
 
-        } catch (StringIndexOutOfBoundsException e) {
-            log("printHex StringIndexOutOfBoundsException: " + e.getMessage());
-        }
-        return sb.toString();
+
+    /**
+     * 把接收到的原始字节显示为 hex
+     */
+    public static String printHex(byte[] data, int length) {
+        return HexCodec.appendDisplay(new StringBuilder(length * 5), data, 0, length).toString();
     }
     // ============================================================================
 
@@ -55,23 +57,10 @@ public class Utils {
      * Перевод введенных ASCII-команд в hex побайтно.
      * @param hex - команда
      * @return - массив байт команды
+     * @throws IllegalArgumentException 字符数为奇数或者有非 hex 字符
      */
     public static byte[] toHex(String hex) {
-        int len = hex.length();
-        byte[] result = new byte[len];
-        try {
-            int index = 0;
-            for (int i = 0; i < len; i += 2) {
-                result[index] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
-                index++;
-            }
-        } catch (NumberFormatException e) {
-            log("toHex NumberFormatException: " + e.getMessage());
-
-        } catch (StringIndexOutOfBoundsException e) {
-            log("toHex StringIndexOutOfBoundsException: " + e.getMessage());
-        }
-        return result;
+        return HexCodec.decode(hex);
     }
     // ============================================================================
 
@@ -98,32 +87,26 @@ public class Utils {
     // ============================================================================
 
     /**
-     * Расчёт контрольной суммы
+     * Получение id сохранённого в игрушке звукового набора
      */
-    public static String calcModulo256(String command)
-    {
-        int crc = 0;
-        for (int i = 0; i< command.length(); i++) {
-            crc += (int)command.charAt(i);
-        }
-        return Integer.toHexString(Utils.mod(crc, 256));
+    public static String getPrefence(Context context, String item) {
+        final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
+        return settings.getString(item, Const.TAG);
     }
     // ============================================================================
 
-    /**
-     * Раскрасить текст нужным цветом
-     */
-    public static String mark(String text, String color) {
-        return "<font color=" + color + ">" + text + "</font>";
-    }
-    // ============================================================================
 
     /**
-     * Получение id сохранённого в игрушке звукового набора
+     * 获取设置中的字符编码，不支持时返回 UTF-8
      */
-    public static String getPrefence(Context context, String item) {
-        final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        return settings.getString(item, Const.TAG);
+    public static Charset getCharsetPrefence(Context context, String tag) {
+        final String name = getPrefence(context, tag);
+        try {
+            if (Charset.isSupported(name)) return Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            log("unsupported charset: " + name);
+        }
+        return DEFAULT_CHARSET;
     }
     // ============================================================================
 
@@ -132,8 +115,15 @@ public class Utils {
      * Получение флага из настроек
      */
     public static boolean getBooleanPrefence(Context context, String tag) {
+        return getBooleanPrefence(context, tag, true);
+    }
+
+    /**
+     * @param defaultValue - 用户还没有打开过设置时的值
+     */
+    public static boolean getBooleanPrefence(Context context, String tag, boolean defaultValue) {
         final SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(context);
-        return settings.getBoolean(tag, true);
+        return settings.getBoolean(tag, defaultValue);
     }
     // ============================================================================
 
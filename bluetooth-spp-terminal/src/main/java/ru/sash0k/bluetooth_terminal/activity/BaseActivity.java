@@ -36,6 +36,7 @@ public abstract class BaseActivity extends Activity {
 
     static final  int REQUEST_ENABLE_LOCATION = 3;
     static final  int REQUEST_ENABLE_COARSE = 4;
+    static final int REQUEST_POST_NOTIFICATIONS = 5;
 
 
     // Message types sent from the DeviceConnector Handler
@@ -44,6 +45,10 @@ public abstract class BaseActivity extends Activity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    // 会话日志恢复完成
+    public static final int MESSAGE_LOG_RESTORED = 6;
+    // 日志搜索的结果
+    public static final int MESSAGE_SEARCH_RESULT = 7;
 
     BluetoothAdapter btAdapter;
 
@@ -106,6 +111,20 @@ public abstract class BaseActivity extends Activity {
         }
         return true;
     }
+
+    /**
+     * Android 13 起前台服务的通知需要运行时权限。没有权限时连接照常进行，只是不显示通知
+     */
+    protected boolean checkNotificationPermission() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) return true;
+        String permission = Manifest.permission.POST_NOTIFICATIONS;
+        if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{permission}, BaseActivity.REQUEST_POST_NOTIFICATIONS);
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -1,98 +1,234 @@
 package ru.sash0k.bluetooth_terminal.activity;
 
 import android.annotation.SuppressLint;
-import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.location.Location;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
 import android.preference.PreferenceManager;
-import android.text.Html;
+import android.text.Editable;
 import android.text.InputFilter;
 import android.text.InputType;
-import android.text.method.ScrollingMovementMethod;
+import android.text.TextWatcher;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.core.content.FileProvider;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 
 import ru.sash0k.bluetooth_terminal.DeviceData;
 import ru.sash0k.bluetooth_terminal.LocationHelper;
 import ru.sash0k.bluetooth_terminal.R;
 import ru.sash0k.bluetooth_terminal.Utils;
+import ru.sash0k.bluetooth_terminal.bluetooth.Checksum;
+import ru.sash0k.bluetooth_terminal.bluetooth.CommandEncoder;
+import ru.sash0k.bluetooth_terminal.bluetooth.ConnectionService;
 import ru.sash0k.bluetooth_terminal.bluetooth.DeviceConnector;
 import ru.sash0k.bluetooth_terminal.bluetooth.DeviceListActivity;
-
-public final class DeviceControlActivity extends BaseActivity {
-    private static final String DEVICE_NAME = "DEVICE_NAME";
-    private static final String LOG = "LOG";
+import ru.sash0k.bluetooth_terminal.bluetooth.LatencyStats;
+import ru.sash0k.bluetooth_terminal.bluetooth.LineBatcher;
+import ru.sash0k.bluetooth_terminal.bluetooth.PasteStreamer;
+import ru.sash0k.bluetooth_terminal.bluetooth.StageStats;
+import ru.sash0k.bluetooth_terminal.log.LogBuffer;
+import ru.sash0k.bluetooth_terminal.log.LogExporter;
+import ru.sash0k.bluetooth_terminal.log.SearchIndex;
+import ru.sash0k.bluetooth_terminal.log.SessionLog;
+
+public final class DeviceControlActivity extends BaseActivity
+        implements ConnectionService.Client, PasteStreamer.Callback, LogExporter.Callback {
+    private static final String SESSION_FILE = "SESSION_FILE";
+    // onSaveInstanceState() 中等待会话日志写入的最长时间
+    private static final long SAVE_FLUSH_TIMEOUT_MS = 500;
+    // 导出的日志在 cache 中的目录，和 xml/file_paths 一致
+    private static final String EXPORT_DIR = "exports";
+    // 导出的文件分享给其它应用后，它们可能还在读取，超过这个时间才删除
+    private static final long EXPORT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
     private static final String SppTag = "spp_debug";
-    private static final String CRC_OK = "#FFFF00";
-    private static final String CRC_BAD = "#FF0000";
-
-    private static final SimpleDateFormat timeformat = new SimpleDateFormat("HH:mm:ss.SSS");
-
     private static String MSG_NOT_CONNECTED;
     private static String MSG_CONNECTING;
     private static String MSG_CONNECTED;
+    private static String MSG_RECONNECTING;
+
+    // 连接和日志在服务中，Activity 只是它们的视图；绑定之前为 null
+    private volatile ConnectionService service;
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            attach(((ConnectionService.LocalBinder) binder).getService());
+        }
 
-    private static DeviceConnector connector;
-    private static BluetoothResponseHandler mHandler;
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
+    // 服务的日志
+    private LogBuffer logBuffer;
+    // 进程被杀死后重建时要恢复的会话日志
+    private String restoreFile;
+    private final Handler searchHandler = new Handler(Looper.getMainLooper(), msg -> {
+        onSearchResult((SearchIndex.Result) msg.obj);
+        return true;
+    });
 
-    private StringBuilder logHtml;
-    private TextView logTextView;
+    private RecyclerView logView;
+    private LinearLayoutManager logLayout;
+    private LogAdapter logAdapter;
+    // 时间前缀按当前时区显示，只在前台时接收时区的改变
+    private final BroadcastReceiver timeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (logAdapter != null) logAdapter.refreshTimeZone();
+        }
+    };
+    // 日志停在最后一行时，新数据到达后自动滚动；用户向上翻看时不滚动
+    private boolean stickToBottom = true;
+    // 用户向上滚动后到达的行数，显示在 newLinesView 中
+    private int newLines;
+    private TextView newLinesView;
+    // 搜索：null - 没有在搜索
+    private String searchQuery;
+    private long[] searchMatches = new long[0];
+    private int searchCurrent = -1;
+    private View searchLayout;
+    private EditText searchEditText;
+    private TextView searchStatus;
+    // 列表的更新和自动滚动每帧最多一次
+    private boolean framePosted;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            framePosted = false;
+            showFrame();
+        }
+    };
+    // 显示新行的一帧画完之后执行：记录接收延迟
+    private final Runnable latencyTask = new Runnable() {
+        @Override
+        public void run() {
+            final DeviceConnector connector = getConnector();
+            if (connector != null) connector.getLatencyStats().rendered(System.nanoTime());
+        }
+    };
+    // 还没有通知列表的行
+    private int addedLines, evictedLines;
     private EditText commandEditText;
 
     // Настройки приложения
-    private int logLimitSize;
-    private boolean hexMode, checkSum, needClean, logLimit;
+    private int logLimitSize, logMemoryLimit;
+    private boolean hexMode, rawMode, needClean, logLimit, flushWhenIdle, sessionLogEnabled, exportGzip;
     private boolean show_timings, show_direction;
     private String command_ending;
+    // null - 不加校验和
+    private Checksum checksum;
+    // 发送设置的快照，设置改变时重新创建
+    private CommandEncoder commandEncoder;
+    private int lineDelimiter, maxLineLength, refreshInterval, overflowPolicy, promptTimeout, macroTimeout;
+    // 多行文本按块发送
+    private final PasteStreamer pasteStreamer = new PasteStreamer(this);
+    private final LogExporter logExporter = new LogExporter(this);
+    private View exportLayout;
+    private ProgressBar exportProgress;
+    private TextView exportStatus;
+    private View pasteLayout;
+    private ProgressBar pasteProgress;
+    private TextView pasteStatus;
+    private boolean flowControl;
+    private int pasteChunkSize, pasteChunkDelay;
+    private Charset charset = Utils.DEFAULT_CHARSET;
     private String deviceName;
     private LocationHelper locationHelper;
-    private boolean isLoggingIn = false;
-    private Handler loginHandler = new Handler(Looper.getMainLooper());
-    private static final int LOGIN_TIMEOUT = 8000; // 8秒超时
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         PreferenceManager.setDefaultValues(this, R.xml.settings_activity, false);
         locationHelper = new LocationHelper(this);
-        if (mHandler == null) mHandler = new BluetoothResponseHandler(this);
-        else mHandler.setTarget(this);
 
         MSG_NOT_CONNECTED = getString(R.string.msg_not_connected);
         MSG_CONNECTING = getString(R.string.msg_connecting);
         MSG_CONNECTED = getString(R.string.msg_connected);
+        MSG_RECONNECTING = getString(R.string.msg_reconnecting);
 
         setContentView(R.layout.activity_terminal);
-        if (isConnected() && (savedInstanceState != null)) {
-            setDeviceName(savedInstanceState.getString(DEVICE_NAME));
-        } else getActionBar().setSubtitle(MSG_NOT_CONNECTED);
+        getActionBar().setSubtitle(MSG_NOT_CONNECTED);
+        if (savedInstanceState != null) restoreFile = savedInstanceState.getString(SESSION_FILE);
+
+        this.logLayout = new LinearLayoutManager(this);
+        this.logLayout.setStackFromEnd(true);
+        this.logView = (RecyclerView) findViewById(R.id.log_view);
+        this.logView.setLayoutManager(logLayout);
+        // 逐行插入的动画在大量数据时没有意义
+        this.logView.setItemAnimator(null);
+        this.logView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView view, int state) {
+                if (state == RecyclerView.SCROLL_STATE_IDLE) setStickToBottom(!view.canScrollVertically(1));
+            }
 
-        this.logHtml = new StringBuilder();
-        if (savedInstanceState != null) this.logHtml.append(savedInstanceState.getString(LOG));
+            @Override
+            public void onScrolled(RecyclerView view, int dx, int dy) {
+                // 只跟随用户的滚动，自动滚动时状态是 IDLE
+                if (view.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+                    setStickToBottom(!view.canScrollVertically(1));
+                }
+            }
+        });
+        this.newLinesView = (TextView) findViewById(R.id.new_lines);
 
-        this.logTextView = (TextView) findViewById(R.id.log_textview);
-        this.logTextView.setMovementMethod(new ScrollingMovementMethod());
-        this.logTextView.setText(Html.fromHtml(logHtml.toString()));
+        this.searchLayout = findViewById(R.id.search_layout);
+        this.searchStatus = (TextView) findViewById(R.id.search_status);
+        this.searchEditText = (EditText) findViewById(R.id.search_edittext);
+        this.searchEditText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (searchQuery != null) startSearch(s.toString());
+            }
+        });
 
         this.commandEditText = (EditText) findViewById(R.id.command_edittext);
+        this.pasteLayout = findViewById(R.id.paste_layout);
+        this.pasteProgress = (ProgressBar) findViewById(R.id.paste_progress);
+        this.pasteStatus = (TextView) findViewById(R.id.paste_status);
+        this.exportLayout = findViewById(R.id.export_layout);
+        this.exportProgress = (ProgressBar) findViewById(R.id.export_progress);
+        this.exportStatus = (TextView) findViewById(R.id.export_status);
         // soft-keyboard send button
         this.commandEditText.setOnEditorActionListener(new TextView.OnEditorActionListener() {
             @Override
@@ -133,16 +269,57 @@ public final class DeviceControlActivity extends BaseActivity {
                 }
             }
         }
+
+        // 服务在 Activity 退出后仍然保持连接，日志在 attach() 中显示
+        final Intent serviceIntent = new Intent(this, ConnectionService.class);
+        startService(serviceIntent);
+        bindService(serviceIntent, serviceConnection, BIND_AUTO_CREATE);
+    }
+    // ==========================================================================
+
+    @Override
+    public synchronized void onResume() {
+        super.onResume();
+        // 在后台时时区的改变没有通知
+        if (logAdapter != null) logAdapter.refreshTimeZone();
+        registerReceiver(timeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+    }
+    // ==========================================================================
+
+    @Override
+    public synchronized void onPause() {
+        unregisterReceiver(timeZoneReceiver);
+        super.onPause();
+    }
+    // ==========================================================================
+
+    @Override
+    protected void onDestroy() {
+        final ConnectionService service = this.service;
+        if (service != null) {
+            service.detach(this);
+            this.service = null;
+        }
+        // 没有连接时服务在解除绑定后停止，宏和登录在服务中继续
+        unbindService(serviceConnection);
+        searchHandler.removeCallbacksAndMessages(null);
+        logExporter.cancel();
+        if (framePosted) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            framePosted = false;
+        }
+        super.onDestroy();
     }
     // ==========================================================================
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putString(DEVICE_NAME, deviceName);
-        if (logTextView != null) {
-            outState.putString(LOG, logHtml.toString());
-        }
+        if (service == null) return;
+        // 日志本身在文件中，这里只保存路径。之后进程可能被杀死，等待已有的记录写入文件
+        if (!service.getSessionLog().flushAndWait(SAVE_FLUSH_TIMEOUT_MS)) Utils.log("session log flush timed out");
+        final File sessionFile = service.getSessionFile();
+        if (sessionFile != null) outState.putString(SESSION_FILE, sessionFile.getPath());
     }
     // ============================================================================
 
@@ -151,7 +328,24 @@ public final class DeviceControlActivity extends BaseActivity {
      * Проверка готовности соединения
      */
     private boolean isConnected() {
-        return (connector != null) && (connector.getState() == DeviceConnector.STATE_CONNECTED);
+        final ConnectionService service = this.service;
+        return (service != null) && service.isConnected();
+    }
+
+    /**
+     * 连接断开，正在等待自动重连
+     */
+    private boolean isReconnecting() {
+        final ConnectionService service = this.service;
+        return (service != null) && service.isReconnecting();
+    }
+
+    /**
+     * 服务中的连接，没有时为 null。可以在任何线程中调用
+     */
+    private DeviceConnector getConnector() {
+        final ConnectionService service = this.service;
+        return (service != null) ? service.getConnector() : null;
     }
     // ==========================================================================
 
@@ -160,11 +354,9 @@ public final class DeviceControlActivity extends BaseActivity {
      * Разорвать соединение
      */
     private void stopConnection() {
-        if (connector != null) {
-            connector.stop();
-            connector = null;
-            deviceName = null;
-        }
+        pasteStreamer.cancel();
+        if (service != null) service.disconnect();
+        deviceName = null;
     }
     // ==========================================================================
 
@@ -211,7 +403,7 @@ public final class DeviceControlActivity extends BaseActivity {
 
             case R.id.menu_search:
                 if (super.isAdapterReady()) {
-                    if (isConnected()) stopConnection();
+                    if (isConnected() || isReconnecting()) stopConnection();
                     else startDeviceListActivity();
                 } else {
                     Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -221,17 +413,27 @@ public final class DeviceControlActivity extends BaseActivity {
                 return true;
 
             case R.id.menu_clear:
-                if (logTextView != null) logTextView.setText("");
+                // 服务绑定之前和解除绑定之后没有日志
+                if (service != null && logAdapter != null) {
+                    service.clearLog();
+                    logAdapter.reset();
+                    setStickToBottom(true);
+                    if (searchQuery != null) startSearch(searchQuery);
+                }
                 return true;
 
             case R.id.menu_send:
-                if (logTextView != null) {
-                    final String msg = logTextView.getText().toString();
-                    final Intent intent = new Intent(Intent.ACTION_SEND);
-                    intent.setType("text/plain");
-                    intent.putExtra(Intent.EXTRA_TEXT, msg);
-                    startActivity(Intent.createChooser(intent, getString(R.string.menu_send)));
-                }
+                exportLog();
+                return true;
+
+            case R.id.menu_find:
+                searchLayout.setVisibility(View.VISIBLE);
+                searchEditText.requestFocus();
+                startSearch(searchEditText.getText().toString());
+                return true;
+
+            case R.id.menu_statistics:
+                showStatistics();
                 return true;
 
             case R.id.menu_settings:
@@ -246,13 +448,49 @@ public final class DeviceControlActivity extends BaseActivity {
     // ============================================================================
 
 
+    /**
+     * 接收统计：界面跟不上时没有显示的数据，接收到显示的延迟，管道各阶段的耗时
+     */
+    private void showStatistics() {
+        long lines = 0, bytes = 0, count = 0;
+        int queued = 0;
+        double avg = 0, max = 0;
+        final StringBuilder stages = new StringBuilder();
+        final DeviceConnector connector = getConnector();
+        if (connector != null) {
+            lines = connector.getDroppedLines();
+            bytes = connector.getDroppedBytes();
+            queued = connector.getQueuedLines();
+            final LatencyStats latency = connector.getLatencyStats();
+            count = latency.getCount();
+            avg = latency.getAverageMillis();
+            max = latency.getMaxMillis();
+            for (StageStats stats : connector.getPipeline().getStats()) {
+                stages.append("\n").append(getString(R.string.statistics_stage, stats.getName(),
+                        stats.getMicrosPerCall(), stats.getBytesPerSecond() / 1024, stats.getDropped()));
+            }
+        }
+        final String message = getString(R.string.statistics_dropped, lines, bytes, queued)
+                + "\n" + getString(R.string.statistics_latency, count, avg, max)
+                + stages;
+        new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.menu_statistics))
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+    // ============================================================================
+
+
     @Override
     public void onStart() {
         super.onStart();
 
         // hex mode
         final String mode = Utils.getPrefence(this, getString(R.string.pref_commands_mode));
-        this.hexMode = "HEX".equals(mode);
+        // в RAW-режиме команды вводятся в hex
+        this.rawMode = "RAW".equals(mode);
+        this.hexMode = "HEX".equals(mode) || rawMode;
         if (hexMode) {
             commandEditText.setInputType(InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS | InputType.TYPE_TEXT_FLAG_CAP_CHARACTERS);
             commandEditText.setFilters(new InputFilter[]{new Utils.InputFilterHex()});
@@ -262,16 +500,84 @@ public final class DeviceControlActivity extends BaseActivity {
         }
 
         // checksum
-        final String checkSum = Utils.getPrefence(this, getString(R.string.pref_checksum_mode));
-        this.checkSum = "Modulo 256".equals(checkSum);
+        this.checksum = Checksum.forName(Utils.getPrefence(this, getString(R.string.pref_checksum_mode)));
 
         this.command_ending = getCommandEnding();
 
         this.show_timings = Utils.getBooleanPrefence(this, getString(R.string.pref_log_timing));
         this.show_direction = Utils.getBooleanPrefence(this, getString(R.string.pref_log_direction));
         this.needClean = Utils.getBooleanPrefence(this, getString(R.string.pref_need_clean));
+        this.flushWhenIdle = Utils.getBooleanPrefence(this, getString(R.string.pref_flush_when_idle), false);
+        this.flowControl = Utils.getBooleanPrefence(this, getString(R.string.pref_flow_control), false);
+        this.pasteChunkSize = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_paste_chunk_size)));
+        this.pasteChunkDelay = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_paste_chunk_delay)));
         this.logLimit = Utils.getBooleanPrefence(this, getString(R.string.pref_log_limit));
         this.logLimitSize = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_log_limit_size)));
+        this.exportGzip = Utils.getBooleanPrefence(this, getString(R.string.pref_export_gzip));
+        this.sessionLogEnabled = Utils.getBooleanPrefence(this, getString(R.string.pref_session_log));
+        this.logMemoryLimit = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_log_memory_limit)));
+        applyLogSettings();
+
+        this.lineDelimiter = getLineDelimiter();
+        this.maxLineLength = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_max_line_length)));
+        this.charset = Utils.getCharsetPrefence(this, getString(R.string.pref_charset));
+        this.commandEncoder = new CommandEncoder(hexMode, charset, command_ending, checksum);
+        this.refreshInterval = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_refresh_interval)));
+        this.overflowPolicy = getOverflowPolicy();
+        this.promptTimeout = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_prompt_timeout)));
+        this.macroTimeout = Utils.formatNumber(Utils.getPrefence(this, getString(R.string.pref_macro_timeout)));
+        if (service != null) service.setSendSettings(commandEncoder, macroTimeout);
+        final DeviceConnector connector = getConnector();
+        if (connector != null) configure(connector);
+    }
+    // ============================================================================
+    private int getLineDelimiter() {
+        String result = Utils.getPrefence(this, getString(R.string.pref_line_delimiter));
+        if (result.equals("\\r\\n")) return DeviceConnector.DELIMITER_CRLF;
+        else if (result.equals("\\r")) return DeviceConnector.DELIMITER_CR;
+        else if (result.equals("NUL")) return DeviceConnector.DELIMITER_NUL;
+        else if (result.equals("idle")) return DeviceConnector.DELIMITER_IDLE;
+        return DeviceConnector.DELIMITER_LF;
+    }
+    // ============================================================================
+    private int getOverflowPolicy() {
+        String result = Utils.getPrefence(this, getString(R.string.pref_overflow_policy));
+        if (result.equals("block")) return LineBatcher.OVERFLOW_BLOCK;
+        else if (result.equals("sample")) return LineBatcher.OVERFLOW_SAMPLE;
+        return LineBatcher.OVERFLOW_DROP_OLDEST;
+    }
+    // ============================================================================
+
+
+    /**
+     * 日志的上限和显示设置
+     */
+    private void applyLogSettings() {
+        if (service == null || logAdapter == null) return;
+        // 上限按行数（可选）和内存（KB，每个字符 2 字节）
+        if (service.setLogLimits(logLimit ? logLimitSize : 0,
+                (int) Math.min(Integer.MAX_VALUE, logMemoryLimit * 512L)) > 0) {
+            logAdapter.reset();
+        }
+        logAdapter.setPrefix(show_timings, show_direction);
+    }
+    // ============================================================================
+
+
+    /**
+     * 把接收相关的设置传给连接
+     */
+    @Override
+    public void configure(DeviceConnector connector) {
+        connector.setLineFraming(lineDelimiter, maxLineLength);
+        connector.setCharset(charset);
+        connector.setRawMode(rawMode);
+        connector.setChecksum(checksum);
+        connector.setBatchInterval(refreshInterval);
+        connector.setOverflowPolicy(overflowPolicy);
+        connector.setPromptTimeout(promptTimeout);
+        connector.setFlushWhenIdle(flushWhenIdle);
+        connector.setSoftwareFlowControl(flowControl);
     }
     // ============================================================================
     private String getCommandEnding() {
@@ -294,7 +600,7 @@ public final class DeviceControlActivity extends BaseActivity {
                 if (resultCode == Activity.RESULT_OK) {
                     String address = data.getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
                     BluetoothDevice device = btAdapter.getRemoteDevice(address);
-                    if (super.isAdapterReady() && (connector == null)) setupConnector(device);
+                    if (super.isAdapterReady() && (getConnector() == null)) setupConnector(device);
                 }
                 break;
             case REQUEST_ENABLE_BT:
@@ -309,11 +615,14 @@ public final class DeviceControlActivity extends BaseActivity {
     // ==========================================================================
     private void setupConnector(BluetoothDevice connectedDevice) {
         stopConnection();
+        if (service == null) return;
         try {
             String emptyName = getString(R.string.empty_device_name);
             DeviceData data = new DeviceData(connectedDevice, emptyName);
-            connector = new DeviceConnector(data, mHandler);
-            connector.connect();
+            // 连接期间的前台通知
+            checkNotificationPermission();
+            // 设置在 configure() 中传给新的连接
+            service.connect(data, sessionLogEnabled);
         } catch (IllegalArgumentException e) {
             Utils.log("setupConnector failed: " + e.getMessage());
         }
@@ -326,35 +635,159 @@ public final class DeviceControlActivity extends BaseActivity {
         if (commandEditText != null) {
             String commandString = commandEditText.getText().toString();
             if (commandString.isEmpty()) return;
+            // 多行文本（粘贴的配置）按块发送
+            if (!hexMode && commandString.indexOf('\n') >= 0 && isConnected()) {
+                startPaste(commandString);
+                return;
+            }
            sendStringCommand(commandString, true);
         }
     }
     // ==========================================================================
 
+
+    private void startPaste(String text) {
+        final String ending = (command_ending != null) ? command_ending : "";
+        pasteProgress.setProgress(0);
+        pasteStatus.setText("");
+        pasteLayout.setVisibility(View.VISIBLE);
+        pasteStreamer.start(getConnector(), text, charset, ending.getBytes(), pasteChunkSize, pasteChunkDelay);
+    }
+
+    /**
+     * 日志导出到 cache 中的文件，完成后分享。
+     * 有会话日志时导出显示的会话的文件（等已追加的记录写入之后），否则分段导出内存中的日志。
+     * 文件名不重复，之前导出的文件只在足够旧之后删除
+     */
+    private void exportLog() {
+        if (service == null) return;
+        final File dir = new File(getCacheDir(), EXPORT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            appendLog(getString(R.string.msg_export_failed), false, true, false);
+            return;
+        }
+        final File[] old = dir.listFiles();
+        final long now = System.currentTimeMillis();
+        if (old != null) for (File file : old) {
+            if (now - file.lastModified() > EXPORT_MAX_AGE_MS) file.delete();
+        }
+
+        // 同一秒内的导出加上序号，文件在这里创建，之后的导出不会选中同一个名字
+        final String name = "log_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(now));
+        final String suffix = exportGzip ? ".txt.gz" : ".txt";
+        File out = new File(dir, name + suffix);
+        try {
+            for (int n = 2; !out.createNewFile(); n++) out = new File(dir, name + "_" + n + suffix);
+        } catch (IOException e) {
+            Utils.loge("exportLog: cannot create " + out, e);
+            appendLog(getString(R.string.msg_export_failed), false, true, false);
+            return;
+        }
+        final File target = out;
+        final boolean gzip = exportGzip;
+        final boolean timings = show_timings;
+        final boolean direction = show_direction;
+        exportProgress.setProgress(0);
+        exportStatus.setText(getString(R.string.export_progress, 0));
+        exportLayout.setVisibility(View.VISIBLE);
+
+        final File sessionFile = service.getSessionFile();
+        if (sessionFile != null) {
+            service.getSessionLog().afterWrites(() -> logExporter.start(SessionLog.sessionFiles(sessionFile), target, gzip, timings, direction));
+        } else {
+            logExporter.start(logBuffer, target, gzip, timings, direction);
+        }
+    }
+
+    /**
+     * 点击导出进度停止导出
+     */
+    public void cancelExport(View view) {
+        logExporter.cancel();
+        exportLayout.setVisibility(View.GONE);
+    }
+
+    @Override
+    public void onExportProgress(final long done, final long total) {
+        runOnUiThread(() -> {
+            final long percent = done * 100 / Math.max(1, total);
+            exportProgress.setProgress((int) (done * exportProgress.getMax() / Math.max(1, total)));
+            exportStatus.setText(getString(R.string.export_progress, percent));
+        });
+    }
+
+    @Override
+    public void onExportFinished(final File file, final boolean cancelled) {
+        runOnUiThread(() -> {
+            if (cancelled) return;
+            exportLayout.setVisibility(View.GONE);
+            if (file == null) {
+                appendLog(getString(R.string.msg_export_failed), false, true, false);
+                return;
+            }
+            final Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", file);
+            final Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType(file.getName().endsWith(".gz") ? "application/gzip" : "text/plain");
+            intent.putExtra(Intent.EXTRA_STREAM, uri);
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(intent, getString(R.string.menu_send)));
+        });
+    }
+    // ==========================================================================
+
+
+    /**
+     * 点击进度条下方的状态停止发送
+     */
+    public void cancelPaste(View view) {
+        pasteStreamer.cancel();
+    }
+
+    @Override
+    public void onPasteProgress(final long sent, final long total, final long bytesPerSecond, final boolean paused) {
+        runOnUiThread(() -> {
+            pasteProgress.setProgress((int) (sent * pasteProgress.getMax() / Math.max(1, total)));
+            pasteStatus.setText(getString(R.string.paste_progress, sent, total, bytesPerSecond,
+                    paused ? getString(R.string.paste_paused) : ""));
+        });
+    }
+
+    @Override
+    public void onPasteFinished(final boolean completed, final long sent, final long millis) {
+        runOnUiThread(() -> {
+            pasteLayout.setVisibility(View.GONE);
+            appendLog(completed ? getString(R.string.paste_finished, sent, millis)
+                    : getString(R.string.paste_cancelled, sent), false, true, completed && needClean);
+        });
+    }
+    // ==========================================================================
+
+    /**
+     * 按钮的 tag 是宏：以 '\n' 分隔的命令
+     */
     public void sendDefaultCommand(View view) {
-        String commandString = view.getTag().toString();
-        sendStringCommand(commandString, false);
+        String macro = view.getTag().toString();
+        if (isConnected()) service.runMacro(macro.split("\n"));
     }
     public void sendStringCommand(String commandString, boolean appendLogFlag) {
-        if (checkSum) {
-            commandString += Utils.calcModulo256(commandString);
-        }
-        String strWithColor = "<font color='green'>"+commandString+"</font>";
         Utils.log("sendStringCommand:" + commandString);
-        byte[] command = (hexMode ? Utils.toHex(commandString) : commandString.getBytes());
-        if (command_ending != null) command = Utils.concat(command, command_ending.getBytes());
-        if (isConnected()) {
-            connector.write(command);
+        final CommandEncoder encoder = this.commandEncoder;
+        final byte[] command;
+        try {
+            command = encoder.encode(commandString);
+        } catch (IllegalArgumentException e) {
+            appendLog(getString(R.string.msg_invalid_hex, e.getMessage()), false, true, false);
+            return;
         }
+        final DeviceConnector connector = getConnector();
+        if (connector != null) connector.write(command);
         if (appendLogFlag) {
-            appendLog(strWithColor, hexMode, true, needClean);
+            appendLog(commandString, encoder.checksumText(command), LogBuffer.STYLE_COMMAND, encoder.isHexMode(), true, needClean);
         }
     }
-    // 添加状态判断
-    // 判断是否已经登录
-    public static boolean AlreadyLogged = false;
-    // 是否需要唤醒
-    public static boolean AlreadyWakedUp = false;
+    // ==========================================================================
+
+
     public void sendLogin(View view) throws InterruptedException {
         String username = ((EditText)findViewById(R.id.username)).getText().toString().trim();
         String passwd = ((EditText)findViewById(R.id.password)).getText().toString().trim();
@@ -366,75 +799,25 @@ public final class DeviceControlActivity extends BaseActivity {
             showAlertDialog("connection is not established", false);
             return;
         }
-        if (AlreadyLogged) {
+        if (service.isLoggedIn()) {
             showAlertDialog("already logged", false);
             return;
         }
 
-        // 开始登录
-        startSmartLogin(username, passwd);
+        // 开始登录，登录在服务中进行，Activity 销毁后也会继续
+        service.startLogin(username, passwd);
     }
-    // ==================== 核心登录流程 ====================
-    /**
-     * 智能登录 - 根据设备响应交互
-     */
-    private void startSmartLogin(String username, String password) {
-        loginUsername = username;
-        loginPassword = password;
-        isLoggingIn = true;
-        loginState = LoginState.IDLE;
-        if (AlreadyWakedUp) {
-            loginState = LoginState.SENT_ENTER;
-        }
-
-        appendLog("start login...", false, true, false);
-        // 设置超时
-        loginHandler.postDelayed(() -> {
-            if (isLoggingIn && loginState != LoginState.SUCCESS) {
-                loginState = LoginState.TIMEOUT;
-                isLoggingIn = false;
-                appendLog("[APP] 登录超时", false, true, false);
-                Toast.makeText(this, "登录超时", Toast.LENGTH_SHORT).show();
-            }
-        }, LOGIN_TIMEOUT);
-
-        // 第一步：发送回车
-        sendLoginStep();
-    }
-
-    /**
-     * 发送登录步骤
-     */
-    private void sendLoginStep() {
-        Utils.log("current state:"+loginState.toString());
-        if (!isLoggingIn) return;
-        switch (loginState) {
-            case IDLE:
-                loginState = LoginState.SENT_ENTER;
-                Utils.log("步骤1: 发送回车唤醒设备");
-                sendEnter();
-                break;
-
-            case SENT_USERNAME:
-                loginState = LoginState.WAITING_PASSWORD;
-                // 等待密码提示，不主动发送
-                Utils.log("等待密码提示...");
-                break;
 
-            case SENT_PASSWORD:
-                loginState = LoginState.WAITING_RESULT;
-                Utils.log("等待登录结果...");
-                break;
-            case SENT_ENTER:
-                // 如果登录时，直接让输入用户名
-                if (!AlreadyWakedUp) {
-                    break;
-                }
-                loginState = LoginState.WAITING_USERNAME;
-                sendUsername();
+    @Override
+    public void onLoginFinished(int result) {
+        if (result == ConnectionService.LOGIN_SUCCESS) {
+            Toast.makeText(this, "登录成功", Toast.LENGTH_SHORT).show();
+            commandEditText.setText("");
+        } else if (result == ConnectionService.LOGIN_TIMEOUT) {
+            Toast.makeText(this, "登录超时", Toast.LENGTH_SHORT).show();
         }
     }
-    public void sendGps(View view) throws InterruptedException {
+    public void sendGps(View view) {
         if (!checkLocationPermission() || !checkCoarsePermission()) {
             showAlertDialog("no location permission", false);
         }
@@ -456,313 +839,213 @@ public final class DeviceControlActivity extends BaseActivity {
                 "gps longitude east " + String.format("%.6f", longitude),
                 "exit"
         };
-        for (String s : gpsCommand) {
-            // 延迟50ms
-            Thread.sleep(50);
-           sendStringCommand(s,false);
-        }
+        // 每条命令等设备的提示符后再发送下一条
+        if (isConnected()) service.runMacro(gpsCommand);
     }
 
 
     void appendLog(String message, boolean hexMode, boolean outgoing, boolean clean) {
-        if (this.logLimit && this.logLimitSize > 0 && logTextView.getLineCount() > this.logLimitSize) {
-            logTextView.setText("");
-        }
-
-        StringBuilder msg = new StringBuilder();
-        if (show_timings) msg.append("[").append(timeformat.format(new Date())).append("]");
-        if (show_direction) {
-            final String arrow = (outgoing ? " << " : " >> ");
-            msg.append(arrow);
-        } else msg.append(" ");
-        String crc = "";
-        boolean crcOk = false;
-        if (checkSum) {
-            int crcPos = message.length() - 2;
-            crc = message.substring(crcPos);
-            message = message.substring(0, crcPos);
-            crcOk = outgoing || crc.equals(Utils.calcModulo256(message).toUpperCase());
-            if (hexMode) crc = Utils.printHex(crc.toUpperCase());
-        }
-        if (!outgoing && isLoggingIn) {
-            processDeviceResponse(message);
-        }
-        msg.append("<b>")
-                .append(hexMode ? Utils.printHex(message) : message)
-                .append(checkSum ? Utils.mark(crc, crcOk ? CRC_OK : CRC_BAD) : "")
-                .append("</b>")
-                .append("<br>");
-
-        logHtml.append(msg);
-        logTextView.append(Html.fromHtml(msg.toString()));
-
-        final int scrollAmount = logTextView.getLayout().getLineTop(logTextView.getLineCount()) - logTextView.getHeight();
-        logTextView.scrollTo(0, Math.max(scrollAmount, 0));
+        appendLog(message, null, LogBuffer.STYLE_NORMAL, hexMode, outgoing, clean);
+    }
 
+    /**
+     * @param crc   - 发送的命令的校验和（hex 字符），没有时为 null
+     * @param style - LogBuffer.STYLE_*
+     */
+    void appendLog(String message, String crc, int style, boolean hexMode, boolean outgoing, boolean clean) {
+        addLine(System.currentTimeMillis(), outgoing, style, hexMode ? Utils.printHex(message) : message,
+                (crc == null) ? null : hexMode ? Utils.printHex(crc) : crc, LogBuffer.CRC_OK);
+        showAddedLines();
         if (clean) commandEditText.setText("");
     }
     // =========================================================================
-    /**
-     * 处理设备响应 - 状态机驱动
-     */
-
-    // 登录状态
-    private enum LoginState {
-        IDLE,              // 空闲
-        SENT_ENTER,        // 已发送回车
-        WAITING_USERNAME,  // 等待用户名提示
-        SENT_USERNAME,     // 已发送用户名
-        WAITING_PASSWORD,  // 等待密码提示
-        SENT_PASSWORD,     // 已发送密码
-        WAITING_RESULT,    // 等待登录结果
-        SUCCESS,           // 登录成功
-        FAILED,            // 登录失败
-        TIMEOUT            // 超时
-    }
-
-    private LoginState loginState = LoginState.IDLE;
-    private String loginUsername = "";
-    private String loginPassword = "";
-    private void processDeviceResponse(String message) {
-        Utils.log("processDeviceResponse:"+message +",state:"+loginState.toString());
-        if (!isLoggingIn) return;
-        String msg = message.toLowerCase().trim();
-
-        switch (loginState) {
-            case SENT_ENTER:
-                // 检查是否需要用户名
-                if (containsUsernamePrompt(msg)) {
-                    loginState = LoginState.WAITING_USERNAME;
-                    sendUsername();
-                }
-                // 检查是否已经有提示符（可能不需要登录）
-                else if (hasCommandPrompt(msg)) {
-                    handleLoginSuccess("已登录");
-                }
-                break;
-
-            case WAITING_USERNAME:
-                if (containsUsernamePrompt(msg)) {
-                    sendUsername();
-                }
-                break;
 
-            case SENT_USERNAME:
-                // 检查是否需要密码
-                if (containsPasswordPrompt(msg)) {
-                    loginState = LoginState.WAITING_PASSWORD;
-                    sendPassword();
-                }
-                // 检查是否登录成功（某些设备发送用户名后直接登录）
-                else if (hasCommandPrompt(msg)) {
-                    handleLoginSuccess("用户名验证通过");
-                }
-                break;
 
-            case WAITING_PASSWORD:
-                if (containsPasswordPrompt(msg)) {
-                    sendPassword();
-                }
-                break;
+    /**
+     * 服务把接收到的数据加入了日志：一次列表更新、一次滚动
+     */
+    @Override
+    public void onLinesAdded(int added, int evicted) {
+        addedLines += added;
+        evictedLines += evicted;
+        showAddedLines();
+    }
+    // =========================================================================
 
-            case SENT_PASSWORD:
-                // 检查登录结果
-                if (hasCommandPrompt(msg)) {
-                    handleLoginSuccess("密码验证通过");
-                } else if (isLoginFailure(msg)) {
-                    handleLoginFailure(message);
-                }
-                break;
 
-            case WAITING_RESULT:
-                if (hasCommandPrompt(msg)) {
-                    handleLoginSuccess("登录成功");
-                } else if (isLoginFailure(msg)) {
-                    handleLoginFailure(message);
-                }
-                break;
-        }
+    /**
+     * 加入服务的日志和会话日志，列表在下一帧更新
+     */
+    private void addLine(long time, boolean outgoing, int style, CharSequence text, CharSequence crc, int crcStatus) {
+        final ConnectionService service = this.service;
+        if (service == null) return;
+        evictedLines += service.logLine(time, outgoing, style, text, crc, crcStatus);
+        addedLines++;
+    }
 
-        // 额外检查：在任何状态都可能出现的提示符
-        if (hasCommandPrompt(msg) && loginState != LoginState.SUCCESS) {
-            handleLoginSuccess("检测到命令提示符");
-        }
-        if (msg.contains("press enter")) {
-           sendEnter();
+    private void showAddedLines() {
+        if (addedLines == 0 && evictedLines == 0) return;
+        logAdapter.onAppended(addedLines, evictedLines);
+        addedLines = 0;
+        evictedLines = 0;
+        if (!framePosted) {
+            framePosted = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
         }
     }
+
     /**
-     * 发送用户名
+     * 每帧一次：通知列表这一帧之前追加的所有行，然后滚动到底部，
+     * 用户向上滚动时不滚动，只更新新行数。
+     * 列表在这一帧中布局和绘制，之后 latencyTask 记录这些行的延迟
      */
-    private void sendUsername() {
-        loginState = LoginState.SENT_USERNAME;
-        loginHandler.postDelayed(() -> {
-            appendLog(loginUsername, false,true,false);
-            sendStringCommand(loginUsername, false);
-        },500);
+    private void showFrame() {
+        final int shown = logAdapter.publish();
+        logView.post(latencyTask);
+        if (stickToBottom) {
+            if (logAdapter.getItemCount() > 0) logView.scrollToPosition(logAdapter.getItemCount() - 1);
+        } else if (shown > 0) {
+            newLines += shown;
+            newLinesView.setText(getString(R.string.msg_new_lines, newLines));
+            newLinesView.setVisibility(View.VISIBLE);
+        }
     }
 
-    private void sendEnter() {
-        loginState = LoginState.SENT_ENTER;
-        loginHandler.postDelayed(() -> {
-            sendStringCommand("\n", false);
-        },500);
+    private void setStickToBottom(boolean stick) {
+        stickToBottom = stick;
+        if (stick && newLines > 0) {
+            newLines = 0;
+            newLinesView.setVisibility(View.GONE);
+        }
     }
+
     /**
-     * 发送密码
+     * 开始新的搜索，结果在 onSearchResult() 中
      */
-    private void sendPassword() {
-        loginState = LoginState.SENT_PASSWORD;
-        loginHandler.postDelayed(() -> {
-            appendLog(loginPassword, false,true,false);
-            sendStringCommand(loginPassword, false);
-        }, 500);
+    private void startSearch(String query) {
+        searchQuery = query;
+        searchMatches = new long[0];
+        searchCurrent = -1;
+        logAdapter.setHighlight(query, -1);
+        searchStatus.setText("");
+        if (!query.isEmpty() && service != null) service.getSearchIndex().query(query, searchHandler, MESSAGE_SEARCH_RESULT);
     }
 
     /**
-     * 处理登录成功
+     * 索引在后台线程中确认的结果，从最新的开始显示
      */
-    private void handleLoginSuccess(String reason) {
-        loginState = LoginState.SUCCESS;
-        isLoggingIn = false;
-        AlreadyLogged = true;
+    void onSearchResult(SearchIndex.Result result) {
+        if (searchQuery == null || !result.query.equals(searchQuery)) return; // 已经过时
+        searchMatches = result.matches;
+        searchCurrent = searchMatches.length - 1;
+        showSearchMatch();
+    }
 
-        appendLog("[APP] 登录成功 (" + reason + ")", false, true, true);
-        loginHandler.post(() -> {
-            Toast.makeText(this, "登录成功", Toast.LENGTH_SHORT).show();
-            // 取消超时
-            loginHandler.removeCallbacksAndMessages(null);
-        });
+    private void showSearchMatch() {
+        final int count = searchMatches.length;
+        searchStatus.setText(getString(R.string.search_status, searchCurrent + 1, count));
+        if (searchCurrent < 0) return;
+        final long sequence = searchMatches[searchCurrent];
+        final int index = logBuffer.indexOf(sequence);
+        logAdapter.setHighlight(searchQuery, sequence);
+        if (index < 0) return; // 已经从日志中丢弃
+        logAdapter.publish();
+        setStickToBottom(false);
+        logLayout.scrollToPositionWithOffset(index, logView.getHeight() / 3);
+    }
+
+    public void searchNext(View view) {
+        if (searchMatches.length == 0) return;
+        searchCurrent = (searchCurrent + 1) % searchMatches.length;
+        showSearchMatch();
+    }
+
+    public void searchPrevious(View view) {
+        if (searchMatches.length == 0) return;
+        searchCurrent = (searchCurrent - 1 + searchMatches.length) % searchMatches.length;
+        showSearchMatch();
+    }
+
+    public void closeSearch(View view) {
+        searchQuery = null;
+        searchMatches = new long[0];
+        searchCurrent = -1;
+        searchLayout.setVisibility(View.GONE);
+        logAdapter.setHighlight(null, -1);
     }
 
     /**
-     * 处理登录失败
+     * 点击新行数：回到底部，恢复自动滚动
      */
-    private void handleLoginFailure(String errorMessage) {
-        loginState = LoginState.FAILED;
-        isLoggingIn = false;
-
-        appendLog("login failed: " + errorMessage, false, true, false);
-        loginHandler.post(() -> {
-            // 取消超时
-            loginHandler.removeCallbacksAndMessages(null);
-        });
+    public void scrollToEnd(View view) {
+        setStickToBottom(true);
+        if (logAdapter.getItemCount() > 0) logView.scrollToPosition(logAdapter.getItemCount() - 1);
     }
-
+    // =========================================================================
     /**
-     * 检查是否包含用户名提示
+     * 服务绑定后显示它的日志和连接状态
      */
-    private boolean containsUsernamePrompt(String message) {
-        String[] prompts = {"login:", "username:", "user:", "user name:"};
-        for (String prompt : prompts) {
-            if (message.contains(prompt)) {
-                return true;
-            }
+    private void attach(ConnectionService service) {
+        this.service = service;
+        this.logBuffer = service.getLog();
+        this.logAdapter = new LogAdapter(logBuffer);
+        logView.setAdapter(logAdapter);
+        if (logBuffer.size() > 0) logView.scrollToPosition(logBuffer.size() - 1);
+        applyLogSettings();
+        service.setSendSettings(commandEncoder, macroTimeout);
+        final DeviceConnector connector = service.getConnector();
+        if (connector != null) configure(connector);
+        service.attach(this);
+
+        onStateChanged(service.isReconnecting() ? ConnectionService.STATE_RECONNECTING
+                : (connector != null) ? connector.getState() : DeviceConnector.STATE_NONE);
+        if (service.isConnected() && service.getDeviceName() != null) setDeviceName(service.getDeviceName());
+        // 进程被系统杀死后重建：从会话日志读取之前的行
+        if (restoreFile != null) {
+            service.restoreLog(new File(restoreFile));
+            restoreFile = null;
         }
-        return false;
     }
+    // ==========================================================================
 
-    /**
-     * 检查是否包含密码提示
-     */
-    private boolean containsPasswordPrompt(String message) {
-        String[] prompts = {"password:", "passwd:", "username: "};
-        for (String prompt : prompts) {
-            if (message.contains(prompt)) {
-                return true;
-            }
+    @Override
+    public void onStateChanged(int state) {
+        switch (state) {
+            case DeviceConnector.STATE_CONNECTED:
+                getActionBar().setSubtitle(MSG_CONNECTED);
+                break;
+            case DeviceConnector.STATE_CONNECTING:
+                getActionBar().setSubtitle(MSG_CONNECTING);
+                break;
+            case ConnectionService.STATE_RECONNECTING:
+                getActionBar().setSubtitle(MSG_RECONNECTING);
+                break;
+            case DeviceConnector.STATE_NONE:
+                getActionBar().setSubtitle(MSG_NOT_CONNECTED);
+                break;
         }
-        return false;
+        invalidateOptionsMenu();
     }
 
-    /**
-     * 检查是否有命令提示符
-     */
-    private boolean hasCommandPrompt(String message) {
-        return message.endsWith("#") ||
-                message.endsWith(">") ||
-                message.endsWith("$") ||
-                message.endsWith("%") ||
-                message.contains("# ") ||
-                message.contains("> ");
+    @Override
+    public void onDeviceName(String name) {
+        setDeviceName(name);
     }
 
     /**
-     * 检查是否登录失败
+     * 从会话日志恢复的行已经放在现有的行之前
      */
-    private boolean isLoginFailure(String message) {
-        String[] failures = {"incorrect", "wrong", "fail", "error", "denied", "invalid"};
-        for (String failure : failures) {
-            if (message.contains(failure)) {
-                return true;
-            }
-        }
-        return false;
+    @Override
+    public void onLogReset() {
+        logAdapter.reset();
+        if (stickToBottom && logBuffer.size() > 0) logView.scrollToPosition(logBuffer.size() - 1);
+        if (searchQuery != null) startSearch(searchQuery);
     }
+    // ==========================================================================
 
     void setDeviceName(String deviceName) {
         this.deviceName = deviceName;
         getActionBar().setSubtitle(deviceName);
     }
     // ==========================================================================
-
-    private static class BluetoothResponseHandler extends Handler {
-        private WeakReference<DeviceControlActivity> mActivity;
-
-        public BluetoothResponseHandler(DeviceControlActivity activity) {
-            mActivity = new WeakReference<DeviceControlActivity>(activity);
-        }
-
-        public void setTarget(DeviceControlActivity target) {
-            mActivity.clear();
-            mActivity = new WeakReference<DeviceControlActivity>(target);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            DeviceControlActivity activity = mActivity.get();
-            if (activity != null) {
-                switch (msg.what) {
-                    case MESSAGE_STATE_CHANGE:
-                        Utils.log("MESSAGE_STATE_CHANGE: " + msg.arg1);
-                        final ActionBar bar = activity.getActionBar();
-                        switch (msg.arg1) {
-                            case DeviceConnector.STATE_CONNECTED:
-                                bar.setSubtitle(MSG_CONNECTED);
-                                break;
-                            case DeviceConnector.STATE_CONNECTING:
-                                bar.setSubtitle(MSG_CONNECTING);
-                                break;
-                            case DeviceConnector.STATE_NONE:
-                                bar.setSubtitle(MSG_NOT_CONNECTED);
-                                break;
-                        }
-                        activity.invalidateOptionsMenu();
-                        break;
-
-                    case MESSAGE_READ:
-                        final String readMessage = (String) msg.obj;
-                        Utils.log("MESSAGE Read: " +readMessage);
-
-                        if (readMessage != null) {
-                            activity.appendLog(readMessage, false, false, false);
-                        }
-                        break;
-
-                    case MESSAGE_DEVICE_NAME:
-                        activity.setDeviceName((String) msg.obj);
-                        break;
-
-                    case MESSAGE_WRITE:
-                        // stub
-                        break;
-
-                    case MESSAGE_TOAST:
-                        // stub
-                        break;
-                }
-            }
-        }
-    }
-    // ==========================================================================
 }
\ No newline at end of file
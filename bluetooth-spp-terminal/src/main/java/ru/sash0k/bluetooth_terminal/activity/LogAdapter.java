@@ -0,0 +1,257 @@
+package ru.sash0k.bluetooth_terminal.activity;
+
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import ru.sash0k.bluetooth_terminal.R;
+import ru.sash0k.bluetooth_terminal.log.LogBuffer;
+import ru.sash0k.bluetooth_terminal.log.LogExporter;
+import ru.sash0k.bluetooth_terminal.log.TimeFormatter;
+
+/**
+ * 日志列表：每一行是 RecyclerView 的一项，只有可见的行参与布局，
+ * 历史再长，追加一批数据的开销也只和这一批的行数有关。
+ * 数据保存在 {@link LogBuffer} 中，显示的格式在绑定可见的行时才生成：
+ * 文本直接复制到每一行自己的 SpannableStringBuilder，颜色和粗体是预先创建的 span，
+ * 不生成 HTML，也不解析。TextView 直接使用这个 SpannableStringBuilder，不再复制；
+ * 每一行有两个，轮流使用：TextView 正在显示的那个不修改。
+ * 模型的变化先累计，publish() 时（每帧最多一次）才通知 RecyclerView；
+ * 在此之前列表仍然显示上次发布的行数，位置按之后丢弃的行数换算到模型。
+ */
+final class LogAdapter extends RecyclerView.Adapter<LogAdapter.LineHolder> {
+    // span 不保存状态，所有行共用
+    private static final Object BOLD = new StyleSpan(Typeface.BOLD);
+    private static final Object COMMAND = new ForegroundColorSpan(0xFF008000);
+    private static final Object WARNING = new ForegroundColorSpan(0xFFFF0000);
+    private static final Object CRC_OK = new ForegroundColorSpan(0xFFFFFF00);
+    private static final Object CRC_BAD = new ForegroundColorSpan(0xFFFF0000);
+
+    // 搜索结果的背景
+    private static final int MATCH = 0xFF705000;
+    private static final int CURRENT_MATCH = 0xFFC04000;
+    // 一行中最多突出显示的次数
+    private static final int MAX_HIGHLIGHTS = 64;
+
+    // TextView 直接使用传入的 Spannable，不创建副本
+    private static final Spannable.Factory NO_COPY = new Spannable.Factory() {
+        @Override
+        public Spannable newSpannable(CharSequence source) {
+            return (source instanceof Spannable) ? (Spannable) source : super.newSpannable(source);
+        }
+    };
+
+    static final class LineHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+        // 显示中的（TextView 持有）和下一次绑定用的
+        private SpannableStringBuilder shown = new SpannableStringBuilder();
+        private SpannableStringBuilder spare = new SpannableStringBuilder();
+        // 搜索结果的 span，同一行中每次出现需要单独的对象，按行复用
+        final List<Object> matches = new ArrayList<Object>();
+        final List<Object> currentMatches = new ArrayList<Object>();
+
+        LineHolder(View view) {
+            super(view);
+            text = (TextView) view;
+            text.setSpannableFactory(NO_COPY);
+        }
+
+        /**
+         * 没有在显示的 builder，已清空
+         */
+        SpannableStringBuilder next() {
+            // 先删除 span，包括上次显示时 TextView 留下的监听，清空文本时不再通知 TextView
+            spare.clearSpans();
+            spare.clear();
+            return spare;
+        }
+
+        /**
+         * 显示 next() 中生成的行
+         */
+        void show() {
+            final SpannableStringBuilder line = spare;
+            spare = shown;
+            shown = line;
+            text.setText(line, TextView.BufferType.SPANNABLE);
+        }
+
+        Object span(boolean current, int n) {
+            final List<Object> pool = current ? currentMatches : matches;
+            while (pool.size() <= n) pool.add(new BackgroundColorSpan(current ? CURRENT_MATCH : MATCH));
+            return pool.get(n);
+        }
+    }
+
+    private final LogBuffer buffer;
+    private boolean showTimings, showDirection;
+    // RecyclerView 看到的行数，和之后模型中追加、丢弃的行数
+    private int publishedCount;
+    private int pendingAdded, pendingEvicted;
+    private final StringBuilder chars = new StringBuilder();
+    private final TimeFormatter timeFormatter = new TimeFormatter();
+    // 搜索：突出显示的文本和当前结果所在的行
+    private String highlight;
+    private long currentMatch = -1;
+    // ==========================================================================
+
+
+    LogAdapter(LogBuffer buffer) {
+        this.buffer = buffer;
+        this.publishedCount = buffer.size();
+    }
+
+    /**
+     * 行前缀：时间和方向
+     */
+    void setPrefix(boolean showTimings, boolean showDirection) {
+        if (showTimings == this.showTimings && showDirection == this.showDirection) return;
+        this.showTimings = showTimings;
+        this.showDirection = showDirection;
+        notifyDataSetChanged();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 系统时区改变后（以及回到前台时，后台期间的改变没有通知）重新显示时间
+     */
+    void refreshTimeZone() {
+        timeFormatter.setTimeZone(TimeZone.getDefault());
+        if (showTimings) notifyDataSetChanged();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 突出显示 query 的每次出现，currentSequence 行中的用另一种颜色。query 为 null 时取消
+     */
+    void setHighlight(String query, long currentSequence) {
+        this.highlight = (query == null || query.isEmpty()) ? null : query;
+        this.currentMatch = currentSequence;
+        notifyDataSetChanged();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 模型中追加了 added 行，为此丢弃了最旧的 evicted 行。只累计，不通知列表
+     */
+    void onAppended(int added, int evicted) {
+        pendingAdded += added;
+        pendingEvicted += evicted;
+    }
+
+    /**
+     * 把累计的变化通知列表
+     *
+     * @return 新显示的行数
+     */
+    int publish() {
+        final int added = pendingAdded;
+        final int evicted = pendingEvicted;
+        if (added == 0 && evicted == 0) return 0;
+        final int before = publishedCount;
+        pendingAdded = 0;
+        pendingEvicted = 0;
+        publishedCount = buffer.size();
+        if (evicted >= before) {
+            notifyDataSetChanged();
+            return publishedCount;
+        }
+        if (evicted > 0) notifyItemRangeRemoved(0, evicted);
+        final int inserted = publishedCount - (before - evicted);
+        if (inserted > 0) notifyItemRangeInserted(before - evicted, inserted);
+        return Math.max(inserted, 0);
+    }
+
+    /**
+     * 模型被整体修改（清空、改变上限、恢复）之后重新显示
+     */
+    void reset() {
+        pendingAdded = 0;
+        pendingEvicted = 0;
+        publishedCount = buffer.size();
+        notifyDataSetChanged();
+    }
+    // ==========================================================================
+
+
+    @Override
+    public LineHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new LineHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.log_line, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(LineHolder holder, int position) {
+        final int index = position - pendingEvicted;
+        final SpannableStringBuilder line = holder.next();
+        // 已经从模型中丢弃的行显示为空，下一帧从列表中删除
+        if (index >= 0) render(index, holder, line);
+        holder.show();
+    }
+
+    @Override
+    public int getItemCount() {
+        return publishedCount;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 前缀 + 文本 + 校验和复制到 line，再按行的样式设置 span
+     */
+    private void render(int index, LineHolder holder, SpannableStringBuilder line) {
+        final StringBuilder sb = chars;
+        sb.setLength(0);
+        appendPrefix(sb, index);
+        final int textStart = sb.length();
+        buffer.appendText(index, sb);
+        final int crcStart = sb.length();
+        buffer.appendCrc(index, sb);
+        final int end = sb.length();
+
+        line.append(sb, 0, end);
+        if (end > textStart) line.setSpan(BOLD, textStart, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        final int style = buffer.getStyle(index);
+        if (crcStart > textStart && style != LogBuffer.STYLE_NORMAL) {
+            line.setSpan((style == LogBuffer.STYLE_COMMAND) ? COMMAND : WARNING,
+                    textStart, crcStart, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        final int crcStatus = buffer.getCrcStatus(index);
+        if (end > crcStart && crcStatus != LogBuffer.CRC_NONE) {
+            line.setSpan((crcStatus == LogBuffer.CRC_OK) ? CRC_OK : CRC_BAD,
+                    crcStart, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        if (highlight != null) {
+            final boolean current = (buffer.getSequence(index) == currentMatch);
+            int from = 0;
+            for (int n = 0; n < MAX_HIGHLIGHTS; n++) {
+                final int found = buffer.find(index, highlight, from);
+                if (found < 0) break;
+                line.setSpan(holder.span(current, n), textStart + found, textStart + found + highlight.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                from = found + highlight.length();
+            }
+        }
+    }
+
+    private void appendPrefix(StringBuilder sb, int index) {
+        LogExporter.appendPrefix(sb, timeFormatter, buffer.getTime(index), buffer.getDirection(index),
+                showTimings, showDirection);
+    }
+}
@@ -39,6 +39,18 @@ public final class SettingsActivity extends PreferenceActivity
         setPreferenceTitle(getString(R.string.pref_commands_ending));
         setPreferenceTitle(getString(R.string.pref_log_limit));
         setPreferenceTitle(getString(R.string.pref_log_limit_size));
+        setPreferenceTitle(getString(R.string.pref_log_memory_limit));
+        setPreferenceTitle(getString(R.string.pref_line_delimiter));
+        setPreferenceTitle(getString(R.string.pref_max_line_length));
+        setPreferenceTitle(getString(R.string.pref_charset));
+        setPreferenceTitle(getString(R.string.pref_refresh_interval));
+        setPreferenceTitle(getString(R.string.pref_overflow_policy));
+        setPreferenceTitle(getString(R.string.pref_prompt_timeout));
+        setPreferenceTitle(getString(R.string.pref_macro_timeout));
+        setPreferenceTitle(getString(R.string.pref_paste_chunk_size));
+        setPreferenceTitle(getString(R.string.pref_paste_chunk_delay));
+        setPreferenceTitle(getString(R.string.pref_auto_reconnect));
+        setPreferenceTitle(getString(R.string.pref_reconnect_attempts));
     }
     // ============================================================================
 
@@ -77,6 +89,14 @@ public final class SettingsActivity extends PreferenceActivity
             if (limitSize != null) limitSize.setEnabled(isEnabled);
         }
 
+        if (getString(R.string.pref_auto_reconnect).equals(preference.getKey())) {
+            boolean isEnabled = ((CheckBoxPreference)preference).isChecked();
+            Preference attempts = findPreference(getString(R.string.pref_reconnect_attempts));
+            if (attempts != null) attempts.setEnabled(isEnabled);
+            Preference login = findPreference(getString(R.string.pref_reconnect_login));
+            if (login != null) login.setEnabled(isEnabled);
+        }
+
         if (preference instanceof ListPreference) {
             if (((ListPreference) preference).getEntry() == null) return;
             final String title = ((ListPreference) preference).getEntry().toString();
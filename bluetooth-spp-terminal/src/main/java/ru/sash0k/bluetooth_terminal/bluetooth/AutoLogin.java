@@ -0,0 +1,351 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import ru.sash0k.bluetooth_terminal.Utils;
+
+/**
+ * 智能登录：根据设备的响应依次发送回车、用户名和密码
+ * 属于 ConnectionService，Activity 被销毁或者屏幕关闭时登录继续进行，自动重连后也可以重新登录。
+ * 只在 UI 线程中使用，设备的响应由服务在接收的行加入日志时交给 onResponse()。
+ */
+final class AutoLogin {
+    static final int LOGIN_TIMEOUT = 8000; // 8秒超时
+    static final int LOGIN_STEP_DELAY = 500; // 没有看到提示符时，步骤之间的等待
+
+    // 登录的结果
+    static final int RESULT_SUCCESS = 0;
+    static final int RESULT_FAILED = 1;
+    static final int RESULT_TIMEOUT = 2;
+
+    // 设备的状态，接收线程中由 DeviceConnector 根据连接信息设置，断开时清除
+    // 判断是否已经登录
+    static volatile boolean alreadyLogged = false;
+    // 是否需要唤醒
+    static volatile boolean alreadyWakedUp = false;
+
+    /**
+     * 在 UI 线程中调用
+     */
+    interface Callback {
+        /**
+         * 发送一条登录输入
+         *
+         * @param show - 是否作为发送的命令显示在日志中
+         */
+        void sendLoginInput(String text, boolean show);
+
+        /**
+         * 登录过程的提示，加入日志
+         */
+        void onLoginNotice(String message);
+
+        /**
+         * @param result - RESULT_*
+         */
+        void onLoginFinished(int result);
+    }
+
+    // 登录状态
+    private enum LoginState {
+        IDLE,              // 空闲
+        SENT_ENTER,        // 已发送回车
+        WAITING_USERNAME,  // 等待用户名提示
+        SENT_USERNAME,     // 已发送用户名
+        WAITING_PASSWORD,  // 等待密码提示
+        SENT_PASSWORD,     // 已发送密码
+        WAITING_RESULT,    // 等待登录结果
+        SUCCESS,           // 登录成功
+        FAILED,            // 登录失败
+        TIMEOUT            // 超时
+    }
+
+    private final Callback callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean isLoggingIn = false;
+    private LoginState loginState = LoginState.IDLE;
+    private String loginUsername = "";
+    private String loginPassword = "";
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (isLoggingIn && loginState != LoginState.SUCCESS) {
+                loginState = LoginState.TIMEOUT;
+                isLoggingIn = false;
+                handler.removeCallbacksAndMessages(null);
+                callback.onLoginNotice("[APP] 登录超时");
+                callback.onLoginFinished(RESULT_TIMEOUT);
+            }
+        }
+    };
+    // ==========================================================================
+
+
+    AutoLogin(Callback callback) {
+        this.callback = callback;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 开始登录，正在进行的登录被取消
+     */
+    void start(String username, String password) {
+        cancel();
+        loginUsername = username;
+        loginPassword = password;
+        isLoggingIn = true;
+        loginState = LoginState.IDLE;
+        if (alreadyWakedUp) {
+            loginState = LoginState.SENT_ENTER;
+        }
+
+        callback.onLoginNotice("start login...");
+        // 设置超时
+        handler.postDelayed(timeoutTask, LOGIN_TIMEOUT);
+
+        // 第一步：发送回车
+        sendLoginStep();
+    }
+
+    /**
+     * 停止登录，还没有发送的步骤不再发送（断开连接时）
+     */
+    void cancel() {
+        handler.removeCallbacksAndMessages(null);
+        isLoggingIn = false;
+        loginState = LoginState.IDLE;
+    }
+
+    boolean isRunning() {
+        return isLoggingIn;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 发送登录步骤
+     */
+    private void sendLoginStep() {
+        Utils.log("current state:" + loginState.toString());
+        if (!isLoggingIn) return;
+        switch (loginState) {
+            case IDLE:
+                loginState = LoginState.SENT_ENTER;
+                Utils.log("步骤1: 发送回车唤醒设备");
+                sendEnter(LOGIN_STEP_DELAY);
+                break;
+
+            case SENT_USERNAME:
+                loginState = LoginState.WAITING_PASSWORD;
+                // 等待密码提示，不主动发送
+                Utils.log("等待密码提示...");
+                break;
+
+            case SENT_PASSWORD:
+                loginState = LoginState.WAITING_RESULT;
+                Utils.log("等待登录结果...");
+                break;
+            case SENT_ENTER:
+                // 如果登录时，直接让输入用户名
+                if (!alreadyWakedUp) {
+                    break;
+                }
+                loginState = LoginState.WAITING_USERNAME;
+                sendUsername(LOGIN_STEP_DELAY);
+        }
+    }
+
+    /**
+     * 处理设备响应 - 状态机驱动
+     */
+    void onResponse(String message) {
+        Utils.log("processDeviceResponse:" + message + ",state:" + loginState.toString());
+        if (!isLoggingIn) return;
+        String msg = message.toLowerCase().trim();
+
+        switch (loginState) {
+            case SENT_ENTER:
+                // 检查是否需要用户名
+                if (containsUsernamePrompt(msg)) {
+                    loginState = LoginState.WAITING_USERNAME;
+                    sendUsername(0);
+                }
+                // 检查是否已经有提示符（可能不需要登录）
+                else if (hasCommandPrompt(msg)) {
+                    handleLoginSuccess("已登录");
+                }
+                break;
+
+            case WAITING_USERNAME:
+                if (containsUsernamePrompt(msg)) {
+                    sendUsername(0);
+                }
+                break;
+
+            case SENT_USERNAME:
+                // 检查是否需要密码
+                if (containsPasswordPrompt(msg)) {
+                    loginState = LoginState.WAITING_PASSWORD;
+                    sendPassword(0);
+                }
+                // 检查是否登录成功（某些设备发送用户名后直接登录）
+                else if (hasCommandPrompt(msg)) {
+                    handleLoginSuccess("用户名验证通过");
+                }
+                break;
+
+            case WAITING_PASSWORD:
+                if (containsPasswordPrompt(msg)) {
+                    sendPassword(0);
+                }
+                break;
+
+            case SENT_PASSWORD:
+                // 检查登录结果
+                if (hasCommandPrompt(msg)) {
+                    handleLoginSuccess("密码验证通过");
+                } else if (isLoginFailure(msg)) {
+                    handleLoginFailure(message);
+                }
+                break;
+
+            case WAITING_RESULT:
+                if (hasCommandPrompt(msg)) {
+                    handleLoginSuccess("登录成功");
+                } else if (isLoginFailure(msg)) {
+                    handleLoginFailure(message);
+                }
+                break;
+        }
+
+        // 额外检查：在任何状态都可能出现的提示符
+        if (isLoggingIn && hasCommandPrompt(msg) && loginState != LoginState.SUCCESS) {
+            handleLoginSuccess("检测到命令提示符");
+        }
+        if (isLoggingIn && msg.contains("press enter")) {
+            sendEnter(0);
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * 发送用户名
+     *
+     * @param delay - 毫秒，看到提示符后立即回应时为 0
+     */
+    private void sendUsername(long delay) {
+        loginState = LoginState.SENT_USERNAME;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                callback.sendLoginInput(loginUsername, true);
+            }
+        }, delay);
+    }
+
+    private void sendEnter(long delay) {
+        loginState = LoginState.SENT_ENTER;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                callback.sendLoginInput("\n", false);
+            }
+        }, delay);
+    }
+
+    /**
+     * 发送密码
+     */
+    private void sendPassword(long delay) {
+        loginState = LoginState.SENT_PASSWORD;
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                callback.sendLoginInput(loginPassword, true);
+            }
+        }, delay);
+    }
+
+    /**
+     * 处理登录成功
+     */
+    private void handleLoginSuccess(String reason) {
+        loginState = LoginState.SUCCESS;
+        isLoggingIn = false;
+        alreadyLogged = true;
+        // 取消超时和还没有发送的步骤
+        handler.removeCallbacksAndMessages(null);
+
+        callback.onLoginNotice("[APP] 登录成功 (" + reason + ")");
+        callback.onLoginFinished(RESULT_SUCCESS);
+    }
+
+    /**
+     * 处理登录失败
+     */
+    private void handleLoginFailure(String errorMessage) {
+        loginState = LoginState.FAILED;
+        isLoggingIn = false;
+        // 取消超时和还没有发送的步骤
+        handler.removeCallbacksAndMessages(null);
+
+        callback.onLoginNotice("login failed: " + errorMessage);
+        callback.onLoginFinished(RESULT_FAILED);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 检查是否包含用户名提示
+     */
+    private static boolean containsUsernamePrompt(String message) {
+        String[] prompts = {"login:", "username:", "user:", "user name:"};
+        for (String prompt : prompts) {
+            if (message.contains(prompt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 检查是否包含密码提示
+     */
+    private static boolean containsPasswordPrompt(String message) {
+        String[] prompts = {"password:", "passwd:", "username: "};
+        for (String prompt : prompts) {
+            if (message.contains(prompt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 检查是否有命令提示符
+     */
+    private static boolean hasCommandPrompt(String message) {
+        return message.endsWith("#") ||
+                message.endsWith(">") ||
+                message.endsWith("$") ||
+                message.endsWith("%") ||
+                message.contains("# ") ||
+                message.contains("> ");
+    }
+
+    /**
+     * 检查是否登录失败
+     */
+    private static boolean isLoginFailure(String message) {
+        String[] failures = {"incorrect", "wrong", "fail", "error", "denied", "invalid"};
+        for (String failure : failures) {
+            if (message.contains(failure)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
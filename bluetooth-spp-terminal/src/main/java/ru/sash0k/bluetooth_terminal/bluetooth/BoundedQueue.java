@@ -0,0 +1,92 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁队列（多生产者、多消费者）
+ * 每个槽位带序号，生产者和消费者只通过 CAS 推进各自的位置，不使用锁。
+ * 生产者在队列满时也可以 poll()，用于“丢弃最旧”策略。
+ */
+final class BoundedQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> items;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+    // ==========================================================================
+
+
+    /**
+     * @param capacity - 向上取整为 2 的幂
+     */
+    BoundedQueue(int capacity) {
+        final int size = (capacity <= 2) ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        items = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) sequences.set(i, i);
+    }
+    // ==========================================================================
+
+
+    /**
+     * @return false - 队列已满
+     */
+    boolean offer(E item) {
+        long pos = enqueuePos.get();
+        while (true) {
+            final int index = (int) (pos & mask);
+            final long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    items.lazySet(index, item);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+            pos = enqueuePos.get();
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * @return null - 队列为空
+     */
+    E poll() {
+        long pos = dequeuePos.get();
+        while (true) {
+            final int index = (int) (pos & mask);
+            final long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    final E item = items.get(index);
+                    items.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+            pos = dequeuePos.get();
+        }
+    }
+    // ==========================================================================
+
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * 近似的元素个数
+     */
+    int size() {
+        final long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+}
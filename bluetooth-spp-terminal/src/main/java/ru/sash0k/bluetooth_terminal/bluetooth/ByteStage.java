@@ -0,0 +1,14 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 接收管道中处理原始字节的阶段，在分行之前执行
+ * 在接收线程中调用，数据原地修改。
+ */
+public interface ByteStage {
+    /**
+     * 处理 buffer[offset, offset + length)，结果写回同一位置
+     *
+     * @return 处理后的字节数，不大于 length
+     */
+    int process(byte[] buffer, int offset, int length);
+}
@@ -0,0 +1,207 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import ru.sash0k.bluetooth_terminal.HexCodec;
+
+/**
+ * 校验和算法
+ * 实例不保存状态，可以在多个线程中共用；增量计算时调用者保存状态：
+ * <pre>
+ * int state = checksum.init();
+ * state = checksum.update(state, buffer, offset, length); // 可以多次调用
+ * int value = checksum.finish(state);
+ * </pre>
+ * CRC 按预先计算的表逐字节计算。
+ * 校验和在链路上的字节顺序：CRC-16/MODBUS 低字节在前，其它高字节在前；
+ * 文本模式下按同样的顺序写成大写 hex 字符，每个字节两个字符。
+ */
+public final class Checksum {
+    // 设置中的名称（pref_checksum_mode）
+    public static final String NONE = "none";
+    public static final String MODULO_256 = "Modulo 256";
+    public static final String XOR = "XOR";
+    public static final String CRC_8 = "CRC-8";
+    public static final String CRC_16_MODBUS = "CRC-16/MODBUS";
+    public static final String CRC_32 = "CRC-32";
+
+    private static final int TYPE_SUM = 0;
+    private static final int TYPE_XOR = 1;
+    private static final int TYPE_CRC_8 = 2;
+    private static final int TYPE_CRC_16_MODBUS = 3;
+    private static final int TYPE_CRC_32 = 4;
+
+    // CRC-8: poly 0x07, init 0x00
+    private static final int[] CRC_8_TABLE = new int[256];
+    // CRC-16/MODBUS: poly 0x8005 (反射 0xA001), init 0xFFFF
+    private static final int[] CRC_16_TABLE = new int[256];
+    // CRC-32: poly 0x04C11DB7 (反射 0xEDB88320), init/xorout 0xFFFFFFFF
+    private static final int[] CRC_32_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i;
+            int crc32 = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = ((crc8 & 0x80) != 0) ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = ((crc16 & 1) != 0) ? (crc16 >>> 1) ^ 0xA001 : crc16 >>> 1;
+                crc32 = ((crc32 & 1) != 0) ? (crc32 >>> 1) ^ 0xEDB88320 : crc32 >>> 1;
+            }
+            CRC_8_TABLE[i] = crc8 & 0xFF;
+            CRC_16_TABLE[i] = crc16;
+            CRC_32_TABLE[i] = crc32;
+        }
+    }
+
+    private static final Checksum[] ALL = {
+            new Checksum(MODULO_256, TYPE_SUM, 1),
+            new Checksum(XOR, TYPE_XOR, 1),
+            new Checksum(CRC_8, TYPE_CRC_8, 1),
+            new Checksum(CRC_16_MODBUS, TYPE_CRC_16_MODBUS, 2),
+            new Checksum(CRC_32, TYPE_CRC_32, 4),
+    };
+
+    private final String name;
+    private final int type;
+    private final int width;
+    // ==========================================================================
+
+
+    private Checksum(String name, int type, int width) {
+        this.name = name;
+        this.type = type;
+        this.width = width;
+    }
+
+    /**
+     * @return "none" 或者未知的名称返回 null
+     */
+    public static Checksum forName(String name) {
+        for (Checksum checksum : ALL) {
+            if (checksum.name.equals(name)) return checksum;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 校验和的字节数
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * 文本模式下校验和的字符数
+     */
+    public int digits() {
+        return width * 2;
+    }
+    // ==========================================================================
+
+
+    public int init() {
+        switch (type) {
+            case TYPE_CRC_16_MODBUS:
+                return 0xFFFF;
+            case TYPE_CRC_32:
+                return 0xFFFFFFFF;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 把 data[offset, offset + length) 计入状态
+     *
+     * @return 新的状态
+     */
+    public int update(int state, byte[] data, int offset, int length) {
+        final int end = offset + length;
+        switch (type) {
+            case TYPE_SUM:
+                for (int i = offset; i < end; i++) state += data[i] & 0xFF;
+                return state & 0xFF;
+            case TYPE_XOR:
+                for (int i = offset; i < end; i++) state ^= data[i] & 0xFF;
+                return state;
+            case TYPE_CRC_8:
+                for (int i = offset; i < end; i++) state = CRC_8_TABLE[(state ^ data[i]) & 0xFF];
+                return state;
+            case TYPE_CRC_16_MODBUS:
+                for (int i = offset; i < end; i++) state = (state >>> 8) ^ CRC_16_TABLE[(state ^ data[i]) & 0xFF];
+                return state;
+            default:
+                for (int i = offset; i < end; i++) state = (state >>> 8) ^ CRC_32_TABLE[(state ^ data[i]) & 0xFF];
+                return state;
+        }
+    }
+
+    public int finish(int state) {
+        return (type == TYPE_CRC_32) ? ~state : state;
+    }
+
+    public int compute(byte[] data, int offset, int length) {
+        return finish(update(init(), data, offset, length));
+    }
+    // ==========================================================================
+
+
+    /**
+     * 按链路上的字节顺序写入 width() 个字节
+     *
+     * @return 写入的字节数
+     */
+    public int writeBytes(int value, byte[] out, int offset) {
+        for (int i = 0; i < width; i++) out[offset + i] = byteAt(value, i);
+        return width;
+    }
+
+    /**
+     * 按链路上的字节顺序写入 digits() 个大写 hex 字符（ASCII）
+     *
+     * @return 写入的字节数
+     */
+    public int writeHex(int value, byte[] out, int offset) {
+        for (int i = 0; i < width; i++) HexCodec.encodeByte(byteAt(value, i), out, offset + 2 * i);
+        return width * 2;
+    }
+
+    /**
+     * 文本模式：一行中校验和 hex 字符的起始位置，即忽略结尾的空白和控制字符后的最后 digits() 个字节。
+     * 显示时按这个位置分开数据和校验和，和 verifyHex() 检查的范围一致
+     *
+     * @return 行太短时返回 -1
+     */
+    public int hexStart(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (end > offset && (data[end - 1] & 0xFF) <= ' ') end--;
+        final int start = end - digits();
+        return (start < offset) ? -1 : start;
+    }
+
+    /**
+     * 文本模式：一行的最后 digits() 个字符（忽略结尾的空白和控制字符）是前面数据的校验和
+     */
+    public boolean verifyHex(byte[] data, int offset, int length) {
+        final int start = hexStart(data, offset, length);
+        if (start < 0) return false;
+        final int value = compute(data, offset, start - offset);
+        for (int i = 0; i < width; i++) {
+            final int high = HexCodec.digitValue(data[start + 2 * i]);
+            final int low = HexCodec.digitValue(data[start + 2 * i + 1]);
+            if (high < 0 || low < 0 || ((high << 4) | low) != (byteAt(value, i) & 0xFF)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 链路上第 index 个字节
+     */
+    private byte byteAt(int value, int index) {
+        final int shift = (type == TYPE_CRC_16_MODBUS) ? 8 * index : 8 * (width - 1 - index);
+        return (byte) (value >>> shift);
+    }
+}
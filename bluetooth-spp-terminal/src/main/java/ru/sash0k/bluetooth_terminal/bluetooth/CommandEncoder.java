@@ -0,0 +1,74 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import ru.sash0k.bluetooth_terminal.HexCodec;
+
+/**
+ * 命令转换为要发送的字节：编码（文本或 HEX）、校验和与结尾。
+ * 实例不可变，是设置在某一时刻的快照，可以交给其它线程（宏的执行线程）使用，
+ * 执行期间修改设置不会影响已经开始的宏。
+ */
+public final class CommandEncoder {
+    private final boolean hexMode;
+    private final Charset charset;
+    private final byte[] ending;
+    // null - 不加校验和
+    private final Checksum checksum;
+    // ==========================================================================
+
+
+    /**
+     * @param ending   - 命令的结尾，null 时没有
+     * @param checksum - null 时不加校验和
+     */
+    public CommandEncoder(boolean hexMode, Charset charset, String ending, Checksum checksum) {
+        this.hexMode = hexMode;
+        this.charset = charset;
+        this.ending = (ending != null) ? ending.getBytes() : new byte[0];
+        this.checksum = checksum;
+    }
+    // ==========================================================================
+
+
+    public boolean isHexMode() {
+        return hexMode;
+    }
+
+    /**
+     * 命令转换为要发送的字节，加上校验和与结尾。
+     * 校验和按命令的字节计算：HEX 模式下追加校验和字节，否则追加它的 hex 字符
+     *
+     * @throws IllegalArgumentException HEX 模式下命令不是合法的 hex
+     */
+    public byte[] encode(String command) {
+        final byte[] payload = hexMode ? HexCodec.decode(command) : command.getBytes(charset);
+        final int checksumLength = (checksum == null) ? 0 : hexMode ? checksum.width() : checksum.digits();
+
+        final byte[] data = new byte[payload.length + checksumLength + ending.length];
+        System.arraycopy(payload, 0, data, 0, payload.length);
+        if (checksum != null) {
+            final int value = checksum.compute(payload, 0, payload.length);
+            if (hexMode) checksum.writeBytes(value, data, payload.length);
+            else checksum.writeHex(value, data, payload.length);
+        }
+        System.arraycopy(ending, 0, data, payload.length + checksumLength, ending.length);
+        return data;
+    }
+
+    /**
+     * encode() 的结果中校验和的 hex 字符，用于显示
+     *
+     * @return 没有校验和时返回 null
+     */
+    public String checksumText(byte[] data) {
+        if (checksum == null) return null;
+        if (hexMode) {
+            final char[] digits = new char[checksum.digits()];
+            HexCodec.encode(data, data.length - ending.length - checksum.width(), checksum.width(), digits, 0);
+            return new String(digits);
+        }
+        return new String(data, data.length - ending.length - checksum.digits(), checksum.digits(), StandardCharsets.US_ASCII);
+    }
+}
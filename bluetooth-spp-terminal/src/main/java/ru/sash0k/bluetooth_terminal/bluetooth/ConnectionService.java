@@ -0,0 +1,704 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.preference.PreferenceManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import ru.sash0k.bluetooth_terminal.DeviceData;
+import ru.sash0k.bluetooth_terminal.HexCodec;
+import ru.sash0k.bluetooth_terminal.R;
+import ru.sash0k.bluetooth_terminal.Utils;
+import ru.sash0k.bluetooth_terminal.activity.DeviceControlActivity;
+import ru.sash0k.bluetooth_terminal.log.LogBuffer;
+import ru.sash0k.bluetooth_terminal.log.SearchIndex;
+import ru.sash0k.bluetooth_terminal.log.SessionLog;
+
+/**
+ * 连接所在的服务：持有 DeviceConnector（和它的接收管道）以及日志的记录（内存中的日志、会话日志、搜索索引）。
+ * Activity 绑定后 attach 作为视图，销毁时 detach；没有 Activity 时接收到的数据照样写入日志，
+ * 执行中的宏和登录也继续进行，屏幕关闭或者 Activity 被销毁都不会断开连接和丢失登录。
+ * 连接期间服务在前台并显示通知，通知中可以断开连接；没有连接也没有绑定的 Activity 时服务停止。
+ * 连接意外断开时（设置中允许）按 ReconnectPolicy 的间隔用同一个 DeviceConnector 重新连接：
+ * 会话日志继续写入同一个会话，没有发送的数据在重新连接后发送，设置允许时用上次的用户名和密码重新登录。
+ * 除了 getConnector() 以外只在 UI 线程中使用。
+ */
+public final class ConnectionService extends Service {
+    public static final String ACTION_DISCONNECT = "ru.sash0k.bluetooth_terminal.action.DISCONNECT";
+
+    // 除了 DeviceConnector.STATE_* 以外的状态：连接断开，等待重新连接
+    public static final int STATE_RECONNECTING = 3;
+
+    // 登录的结果
+    public static final int LOGIN_SUCCESS = AutoLogin.RESULT_SUCCESS;
+    public static final int LOGIN_FAILED = AutoLogin.RESULT_FAILED;
+    public static final int LOGIN_TIMEOUT = AutoLogin.RESULT_TIMEOUT;
+
+    private static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * attach 的 Activity，在 UI 线程中调用
+     */
+    public interface Client {
+        /**
+         * 新的连接在开始连接之前调用，设置接收参数
+         */
+        void configure(DeviceConnector connector);
+
+        /**
+         * @param state - DeviceConnector.STATE_* 或者 STATE_RECONNECTING
+         */
+        void onStateChanged(int state);
+
+        void onDeviceName(String name);
+
+        /**
+         * 接收到的数据或者服务的提示加入了日志
+         */
+        void onLinesAdded(int added, int evicted);
+
+        /**
+         * 日志整体改变（从会话日志恢复了历史）
+         */
+        void onLogReset();
+
+        /**
+         * @param result - LOGIN_*
+         */
+        void onLoginFinished(int result);
+    }
+
+    public final class LocalBinder extends Binder {
+        public ConnectionService getService() {
+            return ConnectionService.this;
+        }
+    }
+
+    // 日志在进程中只有一份：服务停止后再启动时保留，后台线程也不重复创建
+    private static LogBuffer logBuffer;
+    private static SessionLog sessionLog;
+    private static SearchIndex searchIndex;
+    // 日志中显示的会话在会话日志中的文件（第一个分片），没有写入会话日志时为 null
+    private static File sessionFile;
+
+    /**
+     * 每个连接一个，断开的连接之后发来的状态消息不影响新的连接
+     */
+    private final class ConnectorHandler extends Handler {
+        DeviceConnector connector;
+
+        ConnectorHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            onConnectorMessage(this, msg);
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == DeviceControlActivity.MESSAGE_LOG_RESTORED) onLogRestored((LogBuffer) msg.obj);
+        }
+    };
+    private volatile DeviceConnector connector;
+    private Client client;
+    private int state = DeviceConnector.STATE_NONE;
+    // 连接的设备：选择时的名称，和连接上后设备报告的名称
+    private String targetName;
+    private String deviceName;
+    private boolean foreground;
+    // 已经在日志中提示过的丢弃行数
+    private long reportedDrops, reportedDropBytes;
+    private final StringBuilder hexLine = new StringBuilder();
+    // 自动重连：这次连接是否连接上过，是否正在重连，重连成功后是否还要通知 Activity
+    private ReconnectPolicy reconnectPolicy;
+    private boolean sessionConnected;
+    private boolean reconnecting;
+    private final Runnable reconnectTask = new Runnable() {
+        @Override
+        public void run() {
+            final DeviceConnector connector = ConnectionService.this.connector;
+            if (connector != null && reconnecting) connector.connect();
+        }
+    };
+    // 发送设置的快照，Activity 在设置改变时更新，宏和登录使用。还没有设置时为 null
+    private volatile CommandEncoder commandEncoder;
+    // 按钮和 GPS 的命令序列，作为每个连接的接收管道的行阶段
+    private final MacroRunner macroRunner = new MacroRunner(new MacroRunner.Callback() {
+        @Override
+        public void sendMacroCommand(byte[] data) {
+            final DeviceConnector connector = ConnectionService.this.connector;
+            if (connector != null) connector.write(data);
+        }
+
+        @Override
+        public void onMacroError(String command, final String error) {
+            Utils.log("invalid macro command: " + command);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    appendLine(true, LogBuffer.STYLE_NORMAL, getString(R.string.msg_invalid_hex, error));
+                }
+            });
+        }
+
+        @Override
+        public void onMacroFinished(int steps, int timeouts) {
+            if (timeouts == 0) return;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    appendLine(true, LogBuffer.STYLE_NORMAL, "[APP] 未检测到提示符，宏按固定间隔执行");
+                }
+            });
+        }
+    });
+    private final AutoLogin autoLogin = new AutoLogin(new AutoLogin.Callback() {
+        @Override
+        public void sendLoginInput(String text, boolean show) {
+            if (show) appendLine(true, LogBuffer.STYLE_NORMAL, text);
+            sendCommand(text);
+        }
+
+        @Override
+        public void onLoginNotice(String message) {
+            appendLine(true, LogBuffer.STYLE_NORMAL, message);
+        }
+
+        @Override
+        public void onLoginFinished(int result) {
+            if (client != null) client.onLoginFinished(result);
+        }
+    });
+    // 上次登录的用户名和密码，自动重连后重新登录时使用
+    private String loginUsername, loginPassword;
+    // 接收到的行在接收线程中写入会话日志，界面跟不上而没有显示的行也完整保存
+    private final DeviceConnector.LineCapture sessionCapture = new DeviceConnector.LineCapture() {
+        @Override
+        public void onLineReceived(ReceivedLine line) {
+            if (line.isRaw()) {
+                final StringBuilder hex = HexCodec.appendDisplay(new StringBuilder(), line.data, 0, line.data.length);
+                sessionLog.append(line.arrivalTimeMillis(), LogBuffer.DIRECTION_IN, LogBuffer.STYLE_NORMAL,
+                        hex, null, LogBuffer.CRC_NONE);
+            } else {
+                sessionLog.append(line.arrivalTimeMillis(), LogBuffer.DIRECTION_IN, LogBuffer.STYLE_NORMAL,
+                        line.text, line.crc, crcStatus(line));
+            }
+        }
+    };
+    // ==========================================================================
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (sessionLog == null) {
+            sessionLog = new SessionLog(new File(getFilesDir(), "sessions"),
+                    SessionLog.DEFAULT_FILE_LIMIT, SessionLog.DEFAULT_DEVICE_LIMIT);
+        }
+        if (searchIndex == null) searchIndex = new SearchIndex();
+        if (logBuffer == null) logBuffer = new LogBuffer(LogBuffer.DEFAULT_MAX_LINES, LogBuffer.DEFAULT_MAX_CHARS);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.notification_channel), NotificationManager.IMPORTANCE_LOW);
+            channel.setShowBadge(false);
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(channel);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            disconnect();
+            stopIfIdle();
+        }
+        // 进程被杀死后连接已经不存在，不需要重新启动
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * 最后一个 Activity 解除绑定（退出或者重建）：没有连接时停止
+     *
+     * @return true - 之后重新绑定、解除绑定时仍然调用 onRebind()、onUnbind()
+     */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        stopIfIdle();
+        return true;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+    }
+
+    @Override
+    public void onDestroy() {
+        disconnect();
+        sessionLog.flush();
+        super.onDestroy();
+    }
+    // ==========================================================================
+
+
+    public void attach(Client client) {
+        this.client = client;
+    }
+
+    public void detach(Client client) {
+        if (this.client == client) this.client = null;
+    }
+
+    /**
+     * 没有连接也没有 Activity 时停止服务
+     */
+    public void stopIfIdle() {
+        if (connector == null && client == null) stopSelf();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 连接设备，之前的连接断开。服务进入前台
+     *
+     * @param sessionLogEnabled - 是否把这次连接写入会话日志
+     */
+    public void connect(DeviceData data, boolean sessionLogEnabled) {
+        disconnect();
+        final ConnectorHandler connectorHandler = new ConnectorHandler();
+        final DeviceConnector connector = new DeviceConnector(data, connectorHandler);
+        connectorHandler.connector = connector;
+        this.connector = connector;
+        this.targetName = data.getName();
+        reportedDrops = reportedDropBytes = 0;
+        sessionFile = sessionLogEnabled
+                ? sessionLog.startSession(data.getAddress(), data.getName(), System.currentTimeMillis()) : null;
+        if (client != null) client.configure(connector);
+        connector.getPipeline().addLineStage(MacroRunner.STAGE_NAME, macroRunner);
+        connector.setLineCapture(sessionCapture);
+        connector.connect();
+        state = DeviceConnector.STATE_CONNECTING;
+        updateNotification();
+    }
+
+    public void disconnect() {
+        handler.removeCallbacks(reconnectTask);
+        reconnectPolicy = null;
+        sessionConnected = reconnecting = false;
+        macroRunner.cancel();
+        autoLogin.cancel();
+        final DeviceConnector connector = this.connector;
+        if (connector != null) {
+            // 关闭中的接收线程不再写入会话日志（之后可能已经开始新的会话）
+            connector.setLineCapture(null);
+            connector.stop();
+            this.connector = null;
+            deviceName = null;
+        }
+        state = DeviceConnector.STATE_NONE;
+        sessionLog.endSession(System.currentTimeMillis());
+        if (foreground) {
+            stopForeground(true);
+            foreground = false;
+        }
+    }
+
+    /**
+     * 正在等待重新连接（连接意外断开之后）
+     */
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * 当前的连接，可以在任何线程中调用
+     */
+    public DeviceConnector getConnector() {
+        return connector;
+    }
+
+    public boolean isConnected() {
+        final DeviceConnector connector = this.connector;
+        return (connector != null) && (connector.getState() == DeviceConnector.STATE_CONNECTED);
+    }
+
+    /**
+     * 连接的设备名称，还没有连接上时为 null
+     */
+    public String getDeviceName() {
+        return deviceName;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 宏和登录使用的发送设置
+     *
+     * @param macroTimeout - 宏等待提示符的最长时间，毫秒
+     */
+    public void setSendSettings(CommandEncoder encoder, int macroTimeout) {
+        this.commandEncoder = encoder;
+        macroRunner.setTimeouts(macroTimeout, MacroRunner.DEFAULT_FALLBACK_DELAY);
+    }
+
+    /**
+     * 执行宏（每条命令等设备的提示符后再发送下一条），正在执行的宏被取消。没有连接时忽略
+     */
+    public void runMacro(String[] commands) {
+        final CommandEncoder encoder = commandEncoder;
+        if (isConnected() && encoder != null) macroRunner.run(commands, encoder);
+    }
+
+    /**
+     * 登录，自动重连后用同样的用户名和密码重新登录
+     */
+    public void startLogin(String username, String password) {
+        loginUsername = username;
+        loginPassword = password;
+        autoLogin.start(username, password);
+    }
+
+    /**
+     * 设备已经登录（登录成功，或者连接信息表明已经登录）
+     */
+    public boolean isLoggedIn() {
+        return AutoLogin.alreadyLogged;
+    }
+    // ==========================================================================
+
+
+    public LogBuffer getLog() {
+        return logBuffer;
+    }
+
+    public SessionLog getSessionLog() {
+        return sessionLog;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * 日志中显示的会话的文件（恢复的或者最近一次连接的），用 {@link SessionLog#sessionFiles} 得到所有分片。
+     * 这次连接没有写入会话日志时为 null
+     */
+    public File getSessionFile() {
+        return sessionFile;
+    }
+
+    /**
+     * 加入日志模型和搜索索引（只用于显示），参数和 {@link LogBuffer#append} 相同
+     *
+     * @return 为了腾出空间丢弃的行数
+     */
+    public int addLine(long time, boolean outgoing, int style, CharSequence text, CharSequence crc, int crcStatus) {
+        final int direction = outgoing ? LogBuffer.DIRECTION_OUT : LogBuffer.DIRECTION_IN;
+        final int evicted = logBuffer.append(time, direction, style, text, crc, crcStatus);
+        searchIndex.add(logBuffer.getSequence(logBuffer.size() - 1), text);
+        if (evicted > 0) searchIndex.evictBefore(logBuffer.getSequence(0));
+        return evicted;
+    }
+
+    /**
+     * 发送的命令和应用的提示：加入日志（{@link #addLine}）并写入会话日志。
+     * 接收到的行在接收线程中写入会话日志，不用这个方法
+     *
+     * @return 为了腾出空间丢弃的行数
+     */
+    public int logLine(long time, boolean outgoing, int style, CharSequence text, CharSequence crc, int crcStatus) {
+        sessionLog.append(time, outgoing ? LogBuffer.DIRECTION_OUT : LogBuffer.DIRECTION_IN, style, text, crc, crcStatus);
+        return addLine(time, outgoing, style, text, crc, crcStatus);
+    }
+
+    public void clearLog() {
+        logBuffer.clear();
+        searchIndex.clear();
+    }
+
+    /**
+     * 修改日志的上限
+     *
+     * @return 丢弃的行数
+     */
+    public int setLogLimits(int maxLines, int maxChars) {
+        final int dropped = logBuffer.setLimits(maxLines, maxChars);
+        if (dropped > 0) searchIndex.evictBefore(logBuffer.getSequence(0));
+        return dropped;
+    }
+
+    /**
+     * 进程被杀死后重建：这个进程中还没有记录过日志时，从会话日志读取之前的行，完成后通知 onLogReset()
+     */
+    public void restoreLog(File file) {
+        if (logBuffer.size() > 0 || logBuffer.getSequence(0) > 0) return;
+        if (sessionFile == null) sessionFile = file;
+        sessionLog.restore(file, logBuffer, handler, DeviceControlActivity.MESSAGE_LOG_RESTORED);
+    }
+    // ==========================================================================
+
+
+    private void onConnectorMessage(ConnectorHandler from, Message msg) {
+        // 断开后（没有当前的连接）最后的状态消息仍然要通知
+        final boolean current = (connector == null) || (from.connector == connector);
+        switch (msg.what) {
+            case DeviceControlActivity.MESSAGE_READ:
+                // 批次总是要取走，否则接收线程不会再安排新的批次。断开前收到的数据也写入日志
+                captureLines(from.connector, current, ((LineBatcher) msg.obj).drain());
+                break;
+
+            case DeviceControlActivity.MESSAGE_STATE_CHANGE:
+                Utils.log("MESSAGE_STATE_CHANGE: " + msg.arg1);
+                if (!current) break;
+                if (msg.arg1 == DeviceConnector.STATE_CONNECTED) {
+                    onConnected();
+                } else if (msg.arg1 == DeviceConnector.STATE_NONE && connector != null && scheduleReconnect()) {
+                    break;
+                } else if (msg.arg1 == DeviceConnector.STATE_NONE && reconnectPolicy != null) {
+                    // 重连次数用完：断开，会话结束
+                    disconnect();
+                }
+                // 重连时的 STATE_CONNECTING 仍然显示为等待重连
+                if (reconnecting && msg.arg1 == DeviceConnector.STATE_CONNECTING) break;
+                state = msg.arg1;
+                updateNotification();
+                if (client != null) client.onStateChanged(state);
+                break;
+
+            case DeviceControlActivity.MESSAGE_DEVICE_NAME:
+                if (!current) break;
+                deviceName = (String) msg.obj;
+                if (client != null) client.onDeviceName(deviceName);
+                break;
+        }
+    }
+
+    private void onConnected() {
+        if (reconnecting) {
+            reconnecting = false;
+            appendNotice(getString(R.string.msg_reconnected));
+            loginAfterReconnect();
+        }
+        sessionConnected = true;
+        if (reconnectPolicy != null) reconnectPolicy.reset();
+    }
+
+    /**
+     * 自动重连成功：设置允许时用上次的用户名和密码重新登录
+     */
+    private void loginAfterReconnect() {
+        if (!Utils.getBooleanPrefence(this, getString(R.string.pref_reconnect_login), false)) return;
+        if (loginUsername == null || loginUsername.isEmpty() || loginPassword.isEmpty()) return;
+        // 设备那一端的会话已经断开，需要重新唤醒和登录
+        AutoLogin.alreadyWakedUp = false;
+        AutoLogin.alreadyLogged = false;
+        autoLogin.start(loginUsername, loginPassword);
+    }
+
+    /**
+     * 按发送设置转换后发送，不能转换时在日志中提示
+     */
+    private void sendCommand(String command) {
+        final CommandEncoder encoder = commandEncoder;
+        final DeviceConnector connector = this.connector;
+        if (encoder == null || connector == null) return;
+        try {
+            connector.write(encoder.encode(command));
+        } catch (IllegalArgumentException e) {
+            appendLine(true, LogBuffer.STYLE_NORMAL, getString(R.string.msg_invalid_hex, e.getMessage()));
+        }
+    }
+
+    /**
+     * 连接上过的连接断开后，在设置允许时安排下一次重连
+     *
+     * @return 已经安排，false - 不重连
+     */
+    private boolean scheduleReconnect() {
+        if (!sessionConnected || !Utils.getBooleanPrefence(this, getString(R.string.pref_auto_reconnect))) return false;
+        if (reconnectPolicy == null) {
+            reconnectPolicy = new ReconnectPolicy(getReconnectAttempts(), ReconnectPolicy.FIRST_DELAY,
+                    ReconnectPolicy.BASE_DELAY, ReconnectPolicy.MAX_DELAY);
+        }
+        final long delay = reconnectPolicy.nextDelay();
+        if (delay < 0) {
+            appendNotice(getString(R.string.msg_reconnect_failed, reconnectPolicy.getAttempts()));
+            return false;
+        }
+        reconnecting = true;
+        state = STATE_RECONNECTING;
+        appendNotice(getString(R.string.msg_reconnect_scheduled, reconnectPolicy.getAttempts(), delay));
+        handler.postDelayed(reconnectTask, delay);
+        updateNotification();
+        if (client != null) client.onStateChanged(state);
+        return true;
+    }
+
+    /**
+     * 设置中的重连次数，0 - 不限。还没有保存过设置时使用默认值
+     */
+    private int getReconnectAttempts() {
+        final String key = getString(R.string.pref_reconnect_attempts);
+        if (!PreferenceManager.getDefaultSharedPreferences(this).contains(key)) {
+            return ReconnectPolicy.DEFAULT_MAX_ATTEMPTS;
+        }
+        return Utils.formatNumber(Utils.getPrefence(this, key));
+    }
+
+    /**
+     * 应用的提示加入日志
+     */
+    private void appendNotice(String text) {
+        appendLine(false, LogBuffer.STYLE_WARNING, text);
+    }
+
+    private void appendLine(boolean outgoing, int style, String text) {
+        final int evicted = logLine(System.currentTimeMillis(), outgoing, style, text, null, LogBuffer.CRC_NONE);
+        if (client != null) client.onLinesAdded(1, evicted);
+    }
+
+    private void onLogRestored(LogBuffer restored) {
+        if (restored.size() == 0) return;
+        logBuffer.prepend(restored);
+        // 恢复的行在现有的行之前，序号可能重新编号，索引重建
+        searchIndex.clear();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < logBuffer.size(); i++) {
+            text.setLength(0);
+            searchIndex.add(logBuffer.getSequence(i), logBuffer.appendText(i, text));
+        }
+        if (client != null) client.onLogReset();
+    }
+
+    /**
+     * 一批接收到的数据加入日志（会话日志已经在接收线程中写入）。
+     * 没有显示的行的提示只在界面上，不写入会话日志
+     *
+     * @param current - 当前的连接，不是时不提示丢弃的行
+     */
+    private void captureLines(DeviceConnector connector, boolean current, List<ReceivedLine> lines) {
+        if (lines.isEmpty()) return;
+
+        int added = 0, evicted = 0;
+        final long dropped = connector.getDroppedLines();
+        if (current && dropped > reportedDrops) {
+            // 上一批之后有数据没有显示时，在日志中插入一行提示
+            final long droppedBytes = connector.getDroppedBytes();
+            evicted += addLine(System.currentTimeMillis(), false, LogBuffer.STYLE_WARNING, getString(R.string.msg_dropped_lines,
+                    dropped - reportedDrops, droppedBytes - reportedDropBytes), null, LogBuffer.CRC_NONE);
+            added++;
+            reportedDrops = dropped;
+            reportedDropBytes = droppedBytes;
+        }
+
+        final List<String> responses = autoLogin.isRunning() ? new ArrayList<String>(lines.size()) : null;
+        for (ReceivedLine line : lines) {
+            if (line.isRaw()) {
+                // 原始模式的数据块按 hex 显示，不做校验和登录处理
+                hexLine.setLength(0);
+                HexCodec.appendDisplay(hexLine, line.data, 0, line.data.length);
+                evicted += addLine(line.arrivalTimeMillis(), false, LogBuffer.STYLE_NORMAL, hexLine, null, LogBuffer.CRC_NONE);
+            } else {
+                // 校验和已经在接收线程中按字节检查并分开
+                final String message = line.text;
+                evicted += addLine(line.arrivalTimeMillis(), false, LogBuffer.STYLE_NORMAL, message, line.crc,
+                        crcStatus(line));
+                if (responses != null) responses.add(message);
+            }
+            added++;
+        }
+
+        if (client != null) {
+            // 延迟在 Activity 画出这些行之后记录，没有 Activity 时不显示，也不记录
+            final LatencyStats latency = connector.getLatencyStats();
+            for (ReceivedLine line : lines) latency.captured(line.arrivalNanos);
+            client.onLinesAdded(added, evicted);
+        }
+        if (responses != null) {
+            for (String message : responses) autoLogin.onResponse(message);
+        }
+    }
+
+    /**
+     * 接收行的校验和结果换算为 LogBuffer.CRC_*（没有校验和时不使用）
+     */
+    private static int crcStatus(ReceivedLine line) {
+        return (line.checksum == ReceivedLine.CHECKSUM_OK) ? LogBuffer.CRC_OK : LogBuffer.CRC_BAD;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 连接中（包括正在连接和等待重连）时在前台，通知显示状态
+     */
+    private void updateNotification() {
+        final String text;
+        if (state == DeviceConnector.STATE_CONNECTED) {
+            text = getString(R.string.notification_connected, targetName);
+        } else if (state == DeviceConnector.STATE_CONNECTING) {
+            text = getString(R.string.notification_connecting, targetName);
+        } else if (state == STATE_RECONNECTING) {
+            text = getString(R.string.notification_reconnecting, targetName);
+        } else {
+            // 连接断开：不再需要前台，没有 Activity 时服务停止
+            if (foreground) {
+                stopForeground(true);
+                foreground = false;
+            }
+            if (client == null) stopSelf();
+            return;
+        }
+
+        final PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, DeviceControlActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP),
+                PendingIntent.FLAG_IMMUTABLE);
+        final PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, ConnectionService.class).setAction(ACTION_DISCONNECT),
+                PendingIntent.FLAG_IMMUTABLE);
+        final Notification.Builder builder = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                ? new Notification.Builder(this, CHANNEL_ID) : new Notification.Builder(this);
+        final Notification notification = builder
+                .setSmallIcon(R.drawable.ic_action_device_bluetooth_connected)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(open)
+                .addAction(0, getString(R.string.notification_disconnect), stop)
+                .setOngoing(true)
+                .setShowWhen(false)
+                .setOnlyAlertOnce(true)
+                .build();
+
+        if (foreground) {
+            ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).notify(NOTIFICATION_ID, notification);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+            foreground = true;
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+            foreground = true;
+        }
+    }
+}
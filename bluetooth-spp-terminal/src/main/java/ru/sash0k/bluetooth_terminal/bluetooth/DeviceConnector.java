@@ -19,6 +19,11 @@ package ru.sash0k.bluetooth_terminal.bluetooth;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -28,8 +33,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
 
-import java.util.regex.Pattern;
-
 import ru.sash0k.bluetooth_terminal.DeviceData;
 import ru.sash0k.bluetooth_terminal.Utils;
 import ru.sash0k.bluetooth_terminal.activity.DeviceControlActivity;
@@ -44,6 +47,28 @@ public class DeviceConnector {
     public static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 2;  // now connected to a remote device
 
+    // Line delimiters of received data
+    public static final int DELIMITER_LF = LineFramer.DELIMITER_LF;
+    public static final int DELIMITER_CRLF = LineFramer.DELIMITER_CRLF;
+    public static final int DELIMITER_CR = LineFramer.DELIMITER_CR;
+    public static final int DELIMITER_NUL = LineFramer.DELIMITER_NUL;
+    public static final int DELIMITER_IDLE = LineFramer.DELIMITER_IDLE;
+
+    public static final int DEFAULT_PROMPT_TIMEOUT = 20; // ms
+    // 等待提示符时查询输入的最小间隔
+    private static final long MIN_POLL_INTERVAL = 4; // ms
+
+    // 连接断开后保留、等待重连后发送的数据上限
+    public static final int MAX_HELD_BYTES = 64 * 1024;
+
+    /**
+     * 接收到的每一行（原始模式下的每个数据块），在接收线程中、进入批次队列之前调用：
+     * 界面跟不上时被 LineBatcher 丢弃的行也会交给它
+     */
+    public interface LineCapture {
+        void onLineReceived(ReceivedLine line);
+    }
+
     private int mState;
 
     private final BluetoothAdapter btAdapter;
@@ -52,11 +77,46 @@ public class DeviceConnector {
     private ConnectedThread mConnectedThread;
     private final Handler mHandler;
     private final String deviceName;
+    // 接收到的行按帧合并后交给 UI 线程
+    private final LineBatcher batcher;
+    private final LatencyStats latency = new LatencyStats();
+    // 接收数据的处理阶段
+    private final ReceivePipeline pipeline = new ReceivePipeline();
+    private final EscapeSequenceFilter escapeFilter = new EscapeSequenceFilter();
+    private volatile LineCapture capture;
+
+    // 接收数据的分行设置
+    private volatile int lineDelimiter = DELIMITER_LF;
+    private volatile int maxLineLength = LineFramer.DEFAULT_MAX_LINE_LENGTH;
+    private volatile boolean framingChanged;
+    // 没有换行的提示符在数据停顿多久后输出
+    private volatile int promptTimeout = DEFAULT_PROMPT_TIMEOUT;
+    // 收发数据的字符编码
+    private volatile Charset charset = Utils.DEFAULT_CHARSET;
+    // 原始模式：接收的数据不分行、不过滤，直接按块转发
+    private volatile boolean rawMode;
+    // 发送线程的 flush 策略
+    private volatile int flushPolicy = WriterThread.FLUSH_EACH_WRITE;
+    private boolean softwareFlowControl;
+    // 接收行末尾的校验和，null - 不检查
+    private volatile Checksum checksum;
+    // 已发送、还没有收到回显的命令
+    private final EchoTracker echoTracker = new EchoTracker();
+    // 这个连接（重新连接后重新开始）是否发送过命令
+    private volatile boolean commandSent;
+    // 连接断开后（直到 stop() 或者重新连接上）没有发送的数据：断开时队列中的和之后提交的
+    private final ArrayDeque<byte[]> heldWrites = new ArrayDeque<byte[]>();
+    private int heldBytes;
+    private boolean holding;
     // ==========================================================================
 
 
     public DeviceConnector(DeviceData deviceData, Handler handler) {
         mHandler = handler;
+        batcher = new LineBatcher(handler, DeviceControlActivity.MESSAGE_READ);
+        pipeline.addByteStage(ReceivePipeline.STAGE_ESCAPE, escapeFilter);
+        pipeline.addLineStage(ReceivePipeline.STAGE_ECHO, new EchoStage());
+        pipeline.addLineStage(ReceivePipeline.STAGE_CONNECT_STATUS, new ConnectStatusStage());
         btAdapter = BluetoothAdapter.getDefaultAdapter();
         connectedDevice = btAdapter.getRemoteDevice(deviceData.getAddress());
         deviceName = (deviceData.getName() == null) ? deviceData.getAddress() : deviceData.getName();
@@ -107,8 +167,11 @@ public class DeviceConnector {
             mConnectedThread.cancel();
             mConnectedThread = null;
         }
-        DeviceControlActivity.AlreadyWakedUp = false;
-        DeviceControlActivity.AlreadyLogged = false;
+        holding = false;
+        heldWrites.clear();
+        heldBytes = 0;
+        AutoLogin.alreadyWakedUp = false;
+        AutoLogin.alreadyLogged = false;
         setState(STATE_NONE);
     }
     // ==========================================================================
@@ -127,6 +190,131 @@ public class DeviceConnector {
     // ==========================================================================
 
 
+    /**
+     * 设置接收数据的分行方式，连接中也会立即生效
+     *
+     * @param delimiter     - DELIMITER_*
+     * @param maxLineLength - 最大行长度，超过时强制换行
+     */
+    public void setLineFraming(int delimiter, int maxLineLength) {
+        if (delimiter == lineDelimiter && maxLineLength == this.maxLineLength) return;
+        this.lineDelimiter = delimiter;
+        this.maxLineLength = maxLineLength;
+        this.framingChanged = true;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 设置收发数据的字符编码
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 没有换行的提示符等待多久后输出
+     *
+     * @param timeout - 毫秒，不大于 0 时使用默认值
+     */
+    public void setPromptTimeout(int timeout) {
+        this.promptTimeout = (timeout > 0) ? timeout : DEFAULT_PROMPT_TIMEOUT;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 原始（二进制）接收模式
+     */
+    public void setRawMode(boolean rawMode) {
+        this.rawMode = rawMode;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 检查接收行末尾的校验和（hex 字符），结果记录在 {@link ReceivedLine#checksum}
+     *
+     * @param checksum - null 时不检查
+     */
+    public void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 接收数据刷新到界面的最小间隔
+     *
+     * @param interval - 毫秒，不大于 0 时为一帧
+     */
+    public void setBatchInterval(int interval) {
+        batcher.setInterval(interval);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 界面跟不上接收速度时的处理策略
+     *
+     * @param policy - LineBatcher.OVERFLOW_*
+     */
+    public void setOverflowPolicy(int policy) {
+        batcher.setOverflowPolicy(policy);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 接收到的行不经过批次队列、不会丢失地交给 capture（写入会话日志）
+     *
+     * @param capture - null 时不再交给
+     */
+    public void setLineCapture(LineCapture capture) {
+        this.capture = capture;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 因界面跟不上而没有显示的行数
+     */
+    public long getDroppedLines() {
+        return batcher.getDroppedLines();
+    }
+
+    /**
+     * 因界面跟不上而没有显示的字节数
+     */
+    public long getDroppedBytes() {
+        return batcher.getDroppedBytes();
+    }
+
+    /**
+     * 等待显示的行数
+     */
+    public int getQueuedLines() {
+        return batcher.getQueued();
+    }
+
+    /**
+     * 接收数据的处理管道，可以添加自己的阶段
+     */
+    public ReceivePipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * 从收到数据到显示在界面上的延迟
+     */
+    public LatencyStats getLatencyStats() {
+        return latency;
+    }
+    // ==========================================================================
+
+
     /**
      * Получение состояния устройства
      */
@@ -165,22 +353,131 @@ public class DeviceConnector {
     // ==========================================================================
 
 
+    /**
+     * 发送数据，不阻塞调用线程。按提交的顺序发送，不论长度（单个字节的 HEX 命令也一样）。
+     * 连接断开后（等待重连时）数据保留到重新连接上再发送
+     */
     public void write(byte[] data) {
         ConnectedThread r;
         // Synchronize a copy of the ConnectedThread
         synchronized (this) {
+            if (holding) {
+                hold(data.clone());
+                return;
+            }
             if (mState != STATE_CONNECTED) return;
             r = mConnectedThread;
         }
         // Perform the write unsynchronized
-        if (data.length == 1) r.write(data[0]);
-        else r.writeData(data);
+        r.writeData(data);
     }
     // ==========================================================================
 
 
-    private void connectionFailed() {
+    /**
+     * 发送控制数据（Ctrl-C、break 等明确的控制键），排在所有已提交但尚未发送的数据之前，
+     * 不记录回显。没有连接（包括等待重连）时丢弃
+     */
+    public void writeUrgent(byte[] data) {
+        ConnectedThread r;
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) return;
+            r = mConnectedThread;
+        }
+        r.writer.enqueue(data.clone(), true);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 软件流控：收到 XOFF (0x13) 暂停发送，收到 XON (0x11) 恢复。这两个字节不显示
+     */
+    public synchronized void setSoftwareFlowControl(boolean enabled) {
+        if (enabled == softwareFlowControl) return;
+        softwareFlowControl = enabled;
+        if (enabled) {
+            pipeline.addByteStageBefore(ReceivePipeline.STAGE_ESCAPE, ReceivePipeline.STAGE_FLOW_CONTROL,
+                    new FlowControlStage(this::setSendPaused));
+        } else {
+            pipeline.remove(ReceivePipeline.STAGE_FLOW_CONTROL);
+            final WriterThread writer = getWriter();
+            if (writer != null) writer.setPaused(false);
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * 暂停或恢复当前连接的发送线程（XOFF/XON）
+     */
+    private void setSendPaused(boolean paused) {
+        final WriterThread writer = getWriter();
+        if (writer != null) writer.setPaused(paused);
+    }
+
+    /**
+     * 粘贴的数据由 PasteStreamer 直接写入发送队列，它发送的完整行在这里登记，以便去掉回显
+     */
+    void expectEcho(byte[] data, int offset, int length) {
+        echoTracker.expect(data, offset, length, System.nanoTime());
+        commandSent = true;
+    }
+
+    /**
+     * 当前连接的发送线程，没有连接时为 null
+     */
+    synchronized WriterThread getWriter() {
+        if (mState != STATE_CONNECTED || mConnectedThread == null) return null;
+        return mConnectedThread.writer;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 发送数据何时 flush()
+     *
+     * @param whenIdle - true: 队列清空后才 flush()；false: 每次写入后
+     */
+    public void setFlushWhenIdle(boolean whenIdle) {
+        this.flushPolicy = whenIdle ? WriterThread.FLUSH_WHEN_IDLE : WriterThread.FLUSH_EACH_WRITE;
+        final ConnectedThread r = mConnectedThread;
+        if (r != null) r.writer.setFlushPolicy(flushPolicy);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 连接断开时保留的数据，超过上限的丢弃
+     */
+    private void hold(byte[] data) {
+        if (heldBytes + data.length > MAX_HELD_BYTES) {
+            Utils.log("held writes full, dropped " + data.length + " bytes");
+            return;
+        }
+        heldWrites.add(data);
+        heldBytes += data.length;
+    }
+
+    /**
+     * 重新连接后先发送保留的数据，在此之前 write() 的数据仍然排在它们之后
+     */
+    private synchronized void sendHeldWrites(ConnectedThread thread) {
+        if (!holding || mConnectedThread != thread) return;
+        holding = false;
+        byte[] data;
+        while ((data = heldWrites.poll()) != null) thread.writeData(data);
+        heldBytes = 0;
+    }
+    // ==========================================================================
+
+
+    private void connectionFailed(ConnectThread thread) {
         if (D) Log.d(TAG, "connectionFailed");
+        // 被 stop() 或者新的 connect() 取消的连接不再通知
+        synchronized (this) {
+            if (mConnectThread != thread) return;
+            mConnectThread = null;
+        }
 
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(DeviceControlActivity.MESSAGE_TOAST);
@@ -192,7 +489,21 @@ public class DeviceConnector {
     // ==========================================================================
 
 
-    private void connectionLost() {
+    private void connectionLost(ConnectedThread thread) {
+        synchronized (this) {
+            // 被 stop() 关闭的连接不再通知
+            if (mConnectedThread != thread) return;
+            mConnectedThread = null;
+            // 没有发送的数据保留，重新连接后发送
+            final List<byte[]> unsent = thread.writer.cancelAndDrain();
+            final ArrayDeque<byte[]> later = new ArrayDeque<byte[]>(heldWrites);
+            heldWrites.clear();
+            heldBytes = 0;
+            for (byte[] data : unsent) hold(data);
+            for (byte[] data : later) hold(data);
+            holding = true;
+            thread.cancel();
+        }
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(DeviceControlActivity.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
@@ -222,7 +533,7 @@ public class DeviceConnector {
             Utils.log("ConnectThread run");
             if (mmSocket == null) {
                 Utils.log("unable to connect to device, socket isn't created");
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
@@ -238,7 +549,7 @@ public class DeviceConnector {
                 } catch (IOException e2) {
                     Utils.loge("unable to close() socket during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
@@ -274,82 +585,61 @@ public class DeviceConnector {
     // ==========================================================================
 
 
-    // ==========================================================================
-    private class ConnectedThread extends Thread {
-        private static final String TAG = "debug";
-        private static final boolean D = true;
+    /**
+     * 可选阶段：XON/XOFF 软件流控，通过 pause 控制发送线程并去掉这两个字节
+     */
+    private static final class FlowControlStage implements ByteStage {
+        private static final byte XON = 0x11;
+        private static final byte XOFF = 0x13;
 
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
+        interface Pause {
+            void setPaused(boolean paused);
+        }
 
-        public ConnectedThread(BluetoothSocket socket) {
-            Utils.log("create ConnectedThread");
+        private final Pause pause;
 
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        FlowControlStage(Pause pause) {
+            this.pause = pause;
+        }
 
-            // Get the BluetoothSocket input and output streams
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Utils.loge("temp sockets not created", e);
+        @Override
+        public int process(byte[] buffer, int offset, int length) {
+            int out = offset;
+            final int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                final byte b = buffer[i];
+                if (b == XON || b == XOFF) {
+                    pause.setPaused(b == XOFF);
+                } else {
+                    buffer[out++] = b;
+                }
             }
-
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            return out - offset;
         }
+    }
+    // ==========================================================================
 
-        public void run() {
-            Utils.log("ConnectedThread run");
-            byte[] buffer = new byte[1024];
-            int bytes;
-            StringBuilder line = new StringBuilder();
 
-            while (true) {
-                try {
-                    bytes = mmInStream.read(buffer);
+    /**
+     * 内置阶段：去掉已发送命令的回显，按原始字节匹配
+     */
+    private class EchoStage implements LineStage {
+        @Override
+        public boolean process(LineEvent line) {
+            return !echoTracker.isEcho(line.getData(), line.getOffset(), line.getSize(), line.getArrivalNanos());
+        }
+    }
+    // ==========================================================================
 
-                    if (bytes > 0) {
-                        for (int i = 0; i < bytes; i++) {
-                            byte b = buffer[i];
-
-                            if (b == '\n') {
-                                // 处理完整行
-                                String completeLine = line.toString().trim();
-                                if (!completeLine.isEmpty()) {
-                                    // 过滤控制字符和ANSI转义序列
-                                    String cleanMessage = filterControlChars(completeLine);
-                                    // 去掉回显
-                                    cleanMessage = filterAllEcho(cleanMessage,lastCommand);
-                                    cleanMessage = cleanMessage.trim();
-                                    // 如果是自动登录的，去掉其它字符
-                                    if (lastCommand == null) {
-                                        cleanMessage = extractConnectStatus(cleanMessage);
-                                    }
-                                    if (!cleanMessage.isEmpty()) {
-                                        mHandler.obtainMessage(DeviceControlActivity.MESSAGE_READ,
-                                                -1, -1, cleanMessage).sendToTarget();
-                                    }
-                                }
-                                line.setLength(0);
-                            }
-                            else if (b >= 32 && b < 127) {
-                                // 可打印字符
-                                line.append((char) b);
-                            }
-                            // 其他控制字符被忽略
-                        }
-                    } else if (bytes == -1) {
-                        break;
-                    }
-                } catch (IOException e) {
-                    connectionLost();
-                    break;
-                }
-            }
+
+    /**
+     * 内置阶段：还没有发送过命令（自动登录）时，只保留连接状态信息
+     */
+    private class ConnectStatusStage implements LineStage {
+        @Override
+        public boolean process(LineEvent line) {
+            if (!commandSent) line.setText(extractConnectStatus(line.getText()));
+            return true;
         }
 
         /**
@@ -359,7 +649,7 @@ public class DeviceConnector {
             Utils.log("line:"+line);
             if (line.equals("Username: CONNECTED")) {
                 Utils.log("set wakeup true 1");
-                DeviceControlActivity.AlreadyWakedUp = true;
+                AutoLogin.alreadyWakedUp = true;
                 return "Username: ";
             }
             // 检查是否包含连接状态关键字
@@ -369,179 +659,231 @@ public class DeviceConnector {
             }
             if (line.equals("#") || line.equals("# CONNECTED")) {
                 Utils.log("set logged true");
-                DeviceControlActivity.AlreadyLogged = true;
+                AutoLogin.alreadyLogged = true;
             }
             if (line.contains("Username:")) {
                 Utils.log("set wakeup true 2");
-                DeviceControlActivity.AlreadyWakedUp = true;
+                AutoLogin.alreadyWakedUp = true;
                 return line;
             }
             // 如果不是连接状态信息，返回空字符串
             return "";
         }
+    }
+    // ==========================================================================
 
-        private String filterAllEcho(String message, String lastCommand) {
-            if (message == null || message.isEmpty()) return "";
-            if (lastCommand == null || lastCommand.isEmpty()) return message;
 
-            // 常见的提示符模式
-            String[] prompts = {"#", ">", "$", ">", ":", "\\[.*\\]"};
+    private class ConnectedThread extends Thread implements LineFramer.Listener {
+        private static final String TAG = "debug";
+        private static final boolean D = true;
 
-            String msgLower = message.toLowerCase().trim();
-            String cmdLower = lastCommand.toLowerCase().trim();
+        private final BluetoothSocket mmSocket;
+        private final InputStream mmInStream;
+        private final WriterThread writer;
+        private final LineEvent event = new LineEvent();
+        private final LineFramer framer = new LineFramer(this);
+        private StreamDecoder decoder = new StreamDecoder(charset);
+        private byte[] rawBuffer;
+        // 接收线程当前使用的模式，rawMode 改变时切换
+        private boolean inRawMode;
 
-            // 1. 检查是否是直接的命令回显（带或不带提示符）
-            for (String prompt : prompts) {
-                String echoPattern1 = "^" + prompt + "\\s*" + Pattern.quote(cmdLower) + "$";
-                String echoPattern2 = "^" + prompt + "\\s*" + cmdLower + "$";
+        public ConnectedThread(BluetoothSocket socket) {
+            Utils.log("create ConnectedThread");
 
-                if (msgLower.matches(echoPattern1) || msgLower.matches(echoPattern2)) {
-                    Utils.log("过滤带提示符回显: " + message);
-                    return "";
-                }
+            mmSocket = socket;
+            InputStream tmpIn = null;
+            OutputStream tmpOut = null;
+
+            // Get the BluetoothSocket input and output streams
+            try {
+                tmpIn = socket.getInputStream();
+                tmpOut = socket.getOutputStream();
+            } catch (IOException e) {
+                Utils.loge("temp sockets not created", e);
             }
 
-            // 2. 处理带错误前缀的回显（如 sho show ver）
-            // 构建各种可能的错误回显模式
-            String[] errorPrefixes = {
-                    "sho", "sh", "show", "showw", "she", "s"
-            };
-
-            String cmdBody = extractCommandBody(cmdLower);
-
-            for (String prompt : prompts) {
-                for (String prefix1 : errorPrefixes) {
-                    for (String prefix2 : errorPrefixes) {
-                        // 模式如: # sho show ver
-                        String pattern = "^" + prompt + "\\s*" + prefix1 + "\\s+" + prefix2 + "\\s+" + cmdBody + "$";
-                        if (msgLower.matches(pattern)) {
-                            Utils.log("过滤错误前缀回显: " + message);
-                            return "";
+            mmInStream = tmpIn;
+            writer = new WriterThread(tmpOut, mHandler);
+            writer.setFlushPolicy(flushPolicy);
+        }
+
+        public void run() {
+            Utils.log("ConnectedThread run");
+            writer.start();
+            framer.configure(lineDelimiter, maxLineLength, LineFramer.DEFAULT_IDLE_GAP);
+            escapeFilter.reset();
+            echoTracker.clear();
+            // 重新连接后设备重新发送连接状态，像新的连接一样只保留状态信息直到发送命令
+            commandSent = false;
+            sendHeldWrites(this);
+
+            while (true) {
+                try {
+                    if (rawMode != inRawMode) switchMode(rawMode);
+                    if (inRawMode) {
+                        if (!readRaw()) {
+                            connectionLost(this);
+                            break;
                         }
+                        continue;
                     }
-                }
-            }
 
-            // 专门过滤 # sh show show xxx 模式
-            if (message.trim().matches("^#\\s*sh\\s+show\\s+show\\s+.*")) {
-                // 提取命令部分
-                String cmdPart = message.replaceFirst("^#\\s*sh\\s+show\\s+show\\s+", "");
-
-                // 如果是最近发送的命令，过滤掉
-                {
-                    cmdBody = lastCommand.replaceFirst("^(sh|show)\\s+", "");
-                    if (cmdPart.equalsIgnoreCase(cmdBody)) {
-                        Utils.log("过滤 # sh show show 回显: " + message);
-                        return "";
+                    if (framingChanged) {
+                        framingChanged = false;
+                        framer.configure(lineDelimiter, maxLineLength, LineFramer.DEFAULT_IDLE_GAP);
                     }
-                }
-            }
 
-            // 3. 专门过滤 show show inter show inter * only 这种复杂回显
-            if (msgLower.contains("show show") && lastCommand.toLowerCase().contains("show")) {
-                // 提取消息中最后一个 "show" 之后的部分
-                int lastShowIndex = msgLower.lastIndexOf("show");
-                if (lastShowIndex != -1) {
-                    String afterLastShow = msgLower.substring(lastShowIndex + 4).trim(); // +4 是 "show" 的长度
-
-                    // 提取命令中 "show" 之后的部分
-                    int cmdShowIndex = cmdLower.indexOf("show");
-                    String cmdAfterShow = "";
-                    if (cmdShowIndex != -1) {
-                        cmdAfterShow = cmdLower.substring(cmdShowIndex + 4).trim();
+                    // 按停顿分行，或者未完成的行像没有换行的提示符（Username:、Switch# 等）时等待新数据，
+                    // 超时则输出该行。其它情况下行中的停顿不分行，数据保留到收到分隔符或者连接断开
+                    if (framer.hasPending()) {
+                        final boolean idle = (framer.getDelimiter() == DELIMITER_IDLE);
+                        if ((idle || framer.pendingIsPrompt()) && !waitForData(idle ? framer.getIdleGap() : promptTimeout)) {
+                            framer.flush();
+                            continue;
+                        }
                     }
 
-                    // 如果消息的最后部分与命令的 show 之后的部分相同，过滤掉
-                    if (!cmdAfterShow.isEmpty() && afterLastShow.contains(cmdAfterShow)) {
-                        Utils.log("过滤复杂 show 回显: " + message);
-                        return "";
-                    }
-                }
+                    final byte[] buffer = framer.buffer();
+                    final int offset = framer.writeOffset();
+                    final int bytes = mmInStream.read(buffer, offset, framer.writableLength());
+                    final long now = System.nanoTime();
 
-                // 更简单的检查：如果消息中出现两次以上的 "show"，且包含命令内容
-                int showCount = countOccurrences(msgLower, "show");
-                if (showCount >= 2 && msgLower.contains(cmdBody)) {
-                    Utils.log("过滤多次 show 回显: " + message);
-                    return "";
+                    if (bytes > 0) {
+                        // 在行组装之前执行字节阶段（去掉转义序列等）
+                        final int count = pipeline.processBytes(buffer, offset, bytes);
+                        framer.commit(count, bytes, now);
+                    } else if (bytes == -1) {
+                        framer.flush();
+                        connectionLost(this);
+                        break;
+                    }
+                } catch (IOException e) {
+                    framer.flush();
+                    connectionLost(this);
+                    break;
                 }
             }
-
-            return message;
         }
 
-        // 辅助方法：计算字符串出现次数
-        private int countOccurrences(String str, String sub) {
-            int count = 0;
-            int idx = 0;
-            while ((idx = str.indexOf(sub, idx)) != -1) {
-                count++;
-                idx += sub.length();
-            }
-            return count;
+        /**
+         * 切换原始模式：之前模式中未完成的行先输出，分行器、解码器和转义过滤器从头开始，
+         * 半行数据或者多字节字符不会带到新的模式中
+         */
+        private void switchMode(boolean raw) {
+            if (!inRawMode) framer.flush();
+            framingChanged = false;
+            framer.configure(lineDelimiter, maxLineLength, LineFramer.DEFAULT_IDLE_GAP);
+            decoder.reset();
+            escapeFilter.reset();
+            inRawMode = raw;
         }
 
-        private String extractCommandBody(String fullCommand) {
-            // 移除命令中的 "show " 或 "sh " 前缀
-            return fullCommand.replaceFirst("^(sh|show|sho|she|showw)\\s+", "");
-        }
-        private String filterControlChars(String input) {
-            if (input == null || input.isEmpty()) return "";
-
-            // 方法1：使用正则表达式过滤ANSI转义序列和控制字符
-            String filtered = input
-                    // 移除ANSI转义序列（ESC [ ...）
-                    .replaceAll("\\x1B\\[[\\x30-\\x3F]*[\\x20-\\x2F]*[\\x40-\\x7E]", "")
-                    // 移除其他控制字符（包括^C）
-                    .replaceAll("[\\x00-\\x1F\\x7F]", "")
-                    // 移除残留的[字符（ANSI序列残留）
-                    .replaceAll("\\[[A-Za-z]", "")
-                    // 合并多个空格
-                    .replaceAll("\\s+", " ")
-                    .trim();
-
-            return filtered;
+        /**
+         * 原始模式：读到的数据块原样转发，不转换为字符串
+         *
+         * @return false - 流已结束
+         */
+        private boolean readRaw() throws IOException {
+            if (rawBuffer == null) rawBuffer = new byte[LineFramer.MAX_READ_SIZE];
+            final int bytes = mmInStream.read(rawBuffer);
+            if (bytes > 0) {
+                receive(new ReceivedLine(Arrays.copyOf(rawBuffer, bytes), System.nanoTime()));
+            }
+            return bytes != -1;
         }
 
         /**
-         * 记录最后发送的命令
+         * 等待输入数据。BluetoothSocket 的输入流不支持读取超时，只能查询 available()，
+         * 查询间隔为超时的 1/4（至少 MIN_POLL_INTERVAL），每次等待最多查询几次
+         *
+         * @return false - 超时仍没有数据
          */
-        private String lastCommand;
-        public void writeData(byte[] chunk) {
-            try {
-                // byte[] 转 String
-                String command = new String(chunk, "UTF-8");  // 使用UTF-8编码
-                // 如果需要去除空白字符
-                command = command.trim();
-                // 或者去除回车换行符
-                command = command.replace("\r", "").replace("\n", "").trim();
-                lastCommand = command;
-                mmOutStream.write(chunk);
-                mmOutStream.flush();
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(DeviceControlActivity.MESSAGE_WRITE, -1, -1, chunk).sendToTarget();
-            } catch (IOException e) {
-                if (D) Log.e(TAG, "Exception during write", e);
+        private boolean waitForData(int timeout) throws IOException {
+            final long deadline = System.nanoTime() + timeout * 1000000L;
+            final long interval = Math.max(MIN_POLL_INTERVAL, timeout / 4);
+            while (mmInStream.available() == 0) {
+                final long remaining = (deadline - System.nanoTime()) / 1000000L;
+                if (remaining <= 0) return false;
+                try {
+                    Thread.sleep(Math.min(interval, remaining));
+                } catch (InterruptedException e) {
+                    return true;
+                }
             }
+            return true;
         }
 
-        public void write(byte command) {
-            byte[] buffer = new byte[1];
-            buffer[0] = command;
+        /**
+         * 分行器输出的一行：按选择的编码解码，去掉控制字符，合并连续空格，去掉首尾空白，
+         * 然后交给管道的行阶段。
+         * 设置了校验和时，按 verifyHex() 检查的同一字节范围分开：前面的数据解码为文本，
+         * 校验和的 hex 字符单独保存
+         */
+        @Override
+        public void onLine(byte[] data, int offset, int length, int end, long arrivalNanos) {
+            final long start = System.nanoTime();
+            final Charset current = charset;
+            if (decoder.getCharset() != current) decoder = new StreamDecoder(current);
+
+            // 被强制切开的行没有校验和
+            final Checksum cs = (end == LineFramer.END_SPLIT) ? null : checksum;
+            final int crcStart = (cs == null) ? -1 : cs.hexStart(data, offset, length);
+            final int textLength = (crcStart < 0) ? length : crcStart - offset;
+
+            final int count = decoder.decode(data, offset, textLength, end != LineFramer.END_SPLIT);
+            final char[] lineChars = decoder.chars();
+            int len = 0;
+            for (int i = 0; i < count; i++) {
+                final char c = lineChars[i];
+                if (Character.isISOControl(c)) continue; // 控制字符被忽略
+                if (c != ' ' || (len > 0 && lineChars[len - 1] != ' ')) {
+                    lineChars[len++] = c;
+                }
+            }
+            if (len > 0 && lineChars[len - 1] == ' ') len--;
+            if (len == 0 && crcStart < 0) {
+                pipeline.recordDecode(System.nanoTime() - start, length, 0);
+                return;
+            }
 
-            try {
-                mmOutStream.write(buffer);
+            final boolean prompt = (end == LineFramer.END_FLUSH && framer.getDelimiter() != DELIMITER_IDLE);
+            event.set(data, offset, length, lineChars, len, arrivalNanos, prompt);
+            pipeline.recordDecode(System.nanoTime() - start, length, len);
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(DeviceControlActivity.MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                if (D) Log.e(TAG, "Exception during write", e);
+            if (pipeline.processLine(event)) {
+                final int status = (cs == null) ? ReceivedLine.CHECKSUM_NONE
+                        : cs.verifyHex(data, offset, length) ? ReceivedLine.CHECKSUM_OK : ReceivedLine.CHECKSUM_BAD;
+                final String crc = (crcStart < 0) ? null
+                        : new String(data, crcStart, cs.digits(), StandardCharsets.US_ASCII);
+                receive(new ReceivedLine(event.getText(), crc, length, arrivalNanos, prompt, status));
             }
         }
+
+        /**
+         * 先交给 capture，然后进入批次队列（可能因为界面跟不上而丢弃）
+         */
+        private void receive(ReceivedLine line) {
+            final LineCapture capture = DeviceConnector.this.capture;
+            if (capture != null) capture.onLineReceived(line);
+            batcher.add(line);
+        }
+
+        public void writeData(byte[] chunk) {
+            // 回显按字节匹配，发送时不转换为字符串
+            echoTracker.expect(chunk, 0, chunk.length, System.nanoTime());
+            commandSent = true;
+            // 由发送线程写入 socket，调用者不会被慢速链路阻塞
+            writer.enqueue(chunk.clone(), false);
+        }
+
         // ==========================================================================
 
 
 
         public void cancel() {
+            // 唤醒可能在等待队列空间的线程
+            interrupt();
+            writer.cancel();
             try {
                 mmSocket.close();
             } catch (IOException e) {
@@ -0,0 +1,279 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.util.Arrays;
+
+/**
+ * 命令回显跟踪
+ * 发送的每条命令按字节保存在队列中，接收的每一行（原始字节）依次和队列中的命令对齐：
+ * 连续发送多条命令时，每条命令的回显都能被识别，回显丢失的旧命令在后面的命令匹配时一起出队。
+ * 对齐前按终端的方式处理行编辑：退格删除前一个字符，行中的回车使后面的文本覆盖整行，
+ * 大小写不敏感，连续空格合并。
+ * 能识别的回显形式：
+ * 1. 提示符 + 命令，例如 "# show ver"、"[Switch] show ver"
+ * 2. 提示符 + CLI 补全/重绘留下的片段 + 命令，片段必须是命令中某个单词的开头，
+ *    例如 "# sho show ver"、"show show inter show inter * only"
+ *    没有提示符的行（命令本身，或者片段 + 命令）只对最旧的命令有效，
+ *    设备的输出恰好以后面某条命令结尾时不会被当作回显
+ * 3. 终端折行：以提示符开始的命令前半部分，下一行是剩余部分
+ * 匹配只处理字节，不创建字符串。
+ */
+final class EchoTracker {
+    // 最多等待回显的命令数，超出时丢弃最旧的
+    static final int MAX_PENDING = 32;
+    // 超过这个时间没有收到回显的命令被丢弃
+    static final long ECHO_TIMEOUT_NANOS = 10000000000L; // 10 s
+    // 折行回显的第一部分至少包含的命令字节数
+    static final int MIN_FRAGMENT = 8;
+
+    private static final byte BS = 0x08;
+    private static final byte DEL = 0x7F;
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte TAB = '\t';
+    private static final byte SPACE = ' ';
+
+    // 环形队列，最旧的命令在 head
+    private final byte[][] commands = new byte[MAX_PENDING][];
+    private final long[] deadlines = new long[MAX_PENDING];
+    private int head;
+    private int count;
+    // 折行回显：队首命令已经匹配的字节数
+    private int progress;
+
+    // 规范化后的命令和行，只在持有锁时使用
+    private byte[] scratch = new byte[256];
+    // ==========================================================================
+
+
+    /**
+     * 发送线程调用：记录发送的数据。按回车/换行分成多条命令，空命令被忽略
+     */
+    synchronized void expect(byte[] data, int offset, int length, long nowNanos) {
+        final int end = offset + length;
+        int start = offset;
+        for (int i = offset; i <= end; i++) {
+            if (i == end || data[i] == CR || data[i] == LF) {
+                if (i > start) {
+                    final int len = normalize(data, start, i - start);
+                    if (len > 0) push(Arrays.copyOf(scratch, len), nowNanos + ECHO_TIMEOUT_NANOS);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * 接收线程调用：判断一行是否为已发送命令的回显，匹配的命令出队
+     *
+     * @param data   - 一行的字节（不含分隔符）
+     * @param offset - 起始位置
+     * @param length - 字节数
+     */
+    synchronized boolean isEcho(byte[] data, int offset, int length, long nowNanos) {
+        expire(nowNanos);
+        if (count == 0) return false;
+        final int len = normalize(data, offset, length);
+        if (len == 0) return false;
+        final byte[] line = scratch;
+
+        // 折行回显的后续部分
+        if (progress > 0) {
+            final byte[] command = commands[head];
+            int from = progress;
+            if (command[from] == SPACE) from++;
+            if (len <= command.length - from && regionEquals(line, 0, command, from, len)) {
+                progress = from + len;
+                if (progress == command.length) removeThrough(0);
+                return true;
+            }
+            progress = 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (matches(line, len, commands[(head + i) % MAX_PENDING], i == 0)) {
+                removeThrough(i);
+                return true;
+            }
+        }
+
+        // 折行回显的第一部分：这条命令移到队首，下一行继续匹配
+        for (int i = 0; i < count; i++) {
+            final int fragment = matchFragment(line, len, commands[(head + i) % MAX_PENDING]);
+            if (fragment > 0) {
+                if (i > 0) removeThrough(i - 1);
+                progress = fragment;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void clear() {
+        Arrays.fill(commands, null);
+        head = 0;
+        count = 0;
+        progress = 0;
+    }
+    // ==========================================================================
+
+
+    private void push(byte[] command, long deadline) {
+        if (count == MAX_PENDING) removeThrough(0);
+        final int tail = (head + count) % MAX_PENDING;
+        commands[tail] = command;
+        deadlines[tail] = deadline;
+        count++;
+    }
+
+    /**
+     * 删除队列中从最旧的到第 index 条命令
+     */
+    private void removeThrough(int index) {
+        for (int i = 0; i <= index; i++) {
+            commands[head] = null;
+            head = (head + 1) % MAX_PENDING;
+        }
+        count -= index + 1;
+        progress = 0;
+    }
+
+    private void expire(long nowNanos) {
+        int expired = -1;
+        for (int i = 0; i < count; i++) {
+            if (nowNanos - deadlines[(head + i) % MAX_PENDING] > 0) expired = i;
+        }
+        if (expired >= 0) removeThrough(expired);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 按终端显示的结果规范化到 scratch：退格删除前一个字符，回车后的文本从行首开始，
+     * 其它控制字符被忽略，制表符作为空格，连续空格合并，去掉首尾空格，ASCII 字母转小写
+     *
+     * @return 规范化后的长度
+     */
+    private int normalize(byte[] data, int offset, int length) {
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        final byte[] out = scratch;
+        int len = 0;
+        boolean carriage = false;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == BS || b == DEL) {
+                // 删除一个字符，UTF-8 多字节字符整个删除
+                while (len > 0 && (out[len - 1] & 0xC0) == 0x80) len--;
+                if (len > 0) len--;
+                continue;
+            }
+            if (b == CR) {
+                carriage = true;
+                continue;
+            }
+            if (b == TAB) b = SPACE;
+            else if (b >= 0 && b < SPACE) continue;
+            if (carriage) {
+                // 回车后又有文本：终端上这一行被重新输出
+                carriage = false;
+                len = 0;
+            }
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            out[len++] = b;
+        }
+        // 退格处理完之后再合并空格："x\b \b" 中的空格写入后又被删除
+        int result = 0;
+        for (int i = 0; i < len; i++) {
+            if (out[i] == SPACE && (result == 0 || out[result - 1] == SPACE)) continue;
+            out[result++] = out[i];
+        }
+        if (result > 0 && out[result - 1] == SPACE) result--;
+        return result;
+    }
+
+    /**
+     * 行的结尾是命令，前面是提示符和（或）补全留下的片段
+     *
+     * @param oldest - 命令是队列中最旧的：只有它可以匹配命令前面没有提示符的行
+     */
+    private static boolean matches(byte[] line, int len, byte[] command, boolean oldest) {
+        final int start = len - command.length;
+        if (start < 0 || !regionEquals(line, start, command, 0, command.length)) return false;
+        if (start == 0) return oldest;
+        final byte before = line[start - 1];
+        if (before != SPACE && !isPromptChar(before)) return false;
+
+        int end = start;
+        if (line[end - 1] == SPACE) end--;
+        // 提示符之后（或者没有提示符时整个前缀）只能是命令单词的片段
+        int from = end;
+        while (from > 0 && !isPromptChar(line[from - 1])) from--;
+        if (from == 0 && !oldest) return false;
+        return isArtifacts(line, from, end, command);
+    }
+
+    /**
+     * 提示符 + 命令的开头部分（终端折行）
+     *
+     * @return 匹配的命令字节数，0 - 不是折行回显
+     */
+    private static int matchFragment(byte[] line, int len, byte[] command) {
+        for (int p = 0; p < len; p++) {
+            if (!isPromptChar(line[p])) continue;
+            int from = p + 1;
+            if (from < len && line[from] == SPACE) from++;
+            final int fragment = len - from;
+            if (fragment >= MIN_FRAGMENT && fragment < command.length
+                    && regionEquals(line, from, command, 0, fragment)) {
+                return fragment;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * [from, to) 中的每个单词都是命令中某个单词的开头（CLI 补全、重复输入留下的 "sho"、"sh" 等）
+     */
+    private static boolean isArtifacts(byte[] line, int from, int to, byte[] command) {
+        int i = from;
+        while (i < to) {
+            if (line[i] == SPACE) {
+                i++;
+                continue;
+            }
+            int tokenEnd = i;
+            while (tokenEnd < to && line[tokenEnd] != SPACE) tokenEnd++;
+            if (!isCommandWordPart(line, i, tokenEnd, command)) return false;
+            i = tokenEnd;
+        }
+        return true;
+    }
+
+    private static boolean isCommandWordPart(byte[] line, int from, int to, byte[] command) {
+        final int tokenLength = to - from;
+        int w = 0;
+        while (w < command.length) {
+            int common = 0;
+            while (common < tokenLength && w + common < command.length
+                    && command[w + common] != SPACE && command[w + common] == line[from + common]) {
+                common++;
+            }
+            if (common == tokenLength) return true;
+            // 下一个单词
+            while (w < command.length && command[w] != SPACE) w++;
+            w++;
+        }
+        return false;
+    }
+
+    private static boolean isPromptChar(byte b) {
+        return b == '#' || b == '>' || b == ':' || b == ']' || b == '$' || b == '%';
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * ANSI/VT100 转义序列过滤器
+ * 按字节工作的状态机，位于行组装之前，去掉 CSI（ESC [ ...）、OSC（ESC ] ... BEL/ST）、
+ * DCS/SOS/PM/APC 字符串以及单字符转义（ESC 7、ESC ( B 等）。
+ * 状态在多次 read() 之间保留，被拆开的序列也能正确处理。
+ * 序列中出现的 C0 控制字符（CR、LF 等）照常输出并中止序列（ECMA-48 中它们在序列中也被执行），
+ * 被截断的序列不会把前后两行合并。
+ */
+final class EscapeSequenceFilter implements ByteStage {
+    private static final byte ESC = 0x1B;
+    private static final byte BEL = 0x07;
+    private static final byte CAN = 0x18;
+    private static final byte SUB = 0x1A;
+
+    // 超长的字符串序列视为损坏，回到普通状态，避免吞掉后续数据
+    private static final int MAX_SEQUENCE_LENGTH = 4096;
+
+    private static final int STATE_GROUND = 0;       // 普通数据
+    private static final int STATE_ESCAPE = 1;       // 收到 ESC
+    private static final int STATE_INTERMEDIATE = 2; // ESC + 中间字节，例如 ESC ( B
+    private static final int STATE_CSI = 3;          // ESC [
+    private static final int STATE_STRING = 4;       // OSC/DCS/SOS/PM/APC 字符串
+    private static final int STATE_STRING_ESC = 5;   // 字符串中收到 ESC，可能是 ST (ESC \)
+
+    private int state = STATE_GROUND;
+    private int sequenceLength;
+    // ==========================================================================
+
+
+    /**
+     * 过滤一段字节，结果写入 dst（可以与 src 为同一数组，原地过滤）
+     *
+     * @return 写入 dst 的字节数
+     */
+    int filter(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        int out = dstOff;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final byte b = src[i];
+
+            // CAN/SUB 在任何状态下都会中止序列
+            if (state != STATE_GROUND && (b == CAN || b == SUB)) {
+                state = STATE_GROUND;
+                continue;
+            }
+            // 其它 C0 控制字符（ESC 和字符串结束的 BEL 除外）输出，序列中止
+            if (state != STATE_GROUND && b >= 0 && b < 0x20 && b != ESC
+                    && !(b == BEL && (state == STATE_STRING || state == STATE_STRING_ESC))) {
+                state = STATE_GROUND;
+                dst[out++] = b;
+                continue;
+            }
+
+            switch (state) {
+                case STATE_GROUND:
+                    if (b == ESC) enter(STATE_ESCAPE);
+                    else dst[out++] = b;
+                    break;
+
+                case STATE_ESCAPE:
+                    onEscape(b);
+                    break;
+
+                case STATE_INTERMEDIATE:
+                    if (b == ESC) enter(STATE_ESCAPE);
+                    else if (b >= 0x30 && b <= 0x7E) state = STATE_GROUND;
+                    else if (b > 0x2F || b < 0) state = STATE_GROUND; // 非法字节，丢弃序列
+                    break;
+
+                case STATE_CSI:
+                    if (b == ESC) enter(STATE_ESCAPE);
+                    else if (b >= 0x40 && b <= 0x7E) state = STATE_GROUND; // 结束字节
+                    else if (++sequenceLength > MAX_SEQUENCE_LENGTH) state = STATE_GROUND;
+                    // 参数和中间字节被丢弃
+                    break;
+
+                case STATE_STRING:
+                    if (b == BEL) state = STATE_GROUND;
+                    else if (b == ESC) state = STATE_STRING_ESC;
+                    else if (++sequenceLength > MAX_SEQUENCE_LENGTH) state = STATE_GROUND;
+                    break;
+
+                case STATE_STRING_ESC:
+                    if (b == '\\') state = STATE_GROUND; // ST
+                    else onEscape(b);                    // 字符串被新的转义序列打断
+                    break;
+            }
+        }
+        return out - dstOff;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 作为管道阶段：原地过滤
+     */
+    @Override
+    public int process(byte[] buffer, int offset, int length) {
+        return filter(buffer, offset, length, buffer, offset);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 重置状态（新的连接）
+     */
+    void reset() {
+        state = STATE_GROUND;
+        sequenceLength = 0;
+    }
+    // ==========================================================================
+
+
+    private void onEscape(byte b) {
+        switch (b) {
+            case '[':
+                enter(STATE_CSI);
+                break;
+            case ']': // OSC
+            case 'P': // DCS
+            case 'X': // SOS
+            case '^': // PM
+            case '_': // APC
+                enter(STATE_STRING);
+                break;
+            case ESC:
+                enter(STATE_ESCAPE);
+                break;
+            default:
+                if (b >= 0x20 && b <= 0x2F) enter(STATE_INTERMEDIATE);
+                else state = STATE_GROUND; // 单字符转义，例如 ESC 7 / ESC M
+                break;
+        }
+    }
+
+    private void enter(int newState) {
+        state = newState;
+        sequenceLength = 0;
+    }
+}
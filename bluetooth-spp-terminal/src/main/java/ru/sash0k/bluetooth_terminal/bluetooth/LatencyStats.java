@@ -0,0 +1,90 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 接收延迟统计：从第一个字节到达到这一行显示在界面上的时间
+ * 行加入日志时 {@link #captured} 记下到达时间，显示这些行的一帧画完后 {@link #rendered} 一起记录。
+ * 等待显示的行只保存汇总（行数、到达时间之和、最早和最晚的到达时间），不保存每一行。
+ * 只在 UI 线程中使用。
+ */
+public final class LatencyStats {
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private long lastNanos;
+    // 已经加入日志、还没有显示的行：到达时间相对于 pendingBase 保存，求和不会溢出
+    private long pendingCount;
+    private long pendingBase;
+    private long pendingOffsets;
+    private long pendingNewest;
+    // ==========================================================================
+
+
+    /**
+     * 一行加入了日志，等待显示
+     *
+     * @param arrivalNanos - 到达时间，System.nanoTime()
+     */
+    public void captured(long arrivalNanos) {
+        if (pendingCount == 0) {
+            pendingBase = arrivalNanos;
+            pendingNewest = arrivalNanos;
+        } else if (arrivalNanos < pendingBase) {
+            // 保持 pendingBase 是最早的到达时间
+            pendingOffsets += pendingCount * (pendingBase - arrivalNanos);
+            pendingBase = arrivalNanos;
+        }
+        pendingOffsets += arrivalNanos - pendingBase;
+        pendingNewest = arrivalNanos;
+        pendingCount++;
+    }
+
+    /**
+     * 等待显示的行已经画在界面上，记录它们的延迟
+     *
+     * @param renderedNanos - 显示时间，System.nanoTime()
+     */
+    public void rendered(long renderedNanos) {
+        if (pendingCount == 0) return;
+        final long oldest = Math.max(0, renderedNanos - pendingBase);
+        count += pendingCount;
+        totalNanos += Math.max(0, pendingCount * oldest - pendingOffsets);
+        lastNanos = Math.max(0, renderedNanos - pendingNewest);
+        if (oldest > maxNanos) maxNanos = oldest;
+        pendingCount = 0;
+        pendingOffsets = 0;
+    }
+    // ==========================================================================
+
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 平均延迟，毫秒
+     */
+    public double getAverageMillis() {
+        return (count == 0) ? 0 : totalNanos / (count * 1000000.0);
+    }
+
+    /**
+     * 最大延迟，毫秒
+     */
+    public double getMaxMillis() {
+        return maxNanos / 1000000.0;
+    }
+
+    /**
+     * 最近一行的延迟，毫秒
+     */
+    public double getLastMillis() {
+        return lastNanos / 1000000.0;
+    }
+    // ==========================================================================
+
+
+    public void reset() {
+        count = totalNanos = maxNanos = lastNanos = 0;
+        pendingCount = pendingOffsets = 0;
+    }
+}
@@ -0,0 +1,176 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把接收线程产生的行合并成批次交给 UI 线程
+ * 每个间隔（默认一帧）最多发送一条消息，UI 线程一次取走整批数据。
+ * 两个线程之间是有界无锁队列，界面跟不上时按选择的策略处理溢出并统计丢弃的数据。
+ * 提示符不等批次间隔，立即发送，使登录等自动操作尽快响应。
+ */
+public final class LineBatcher {
+    public static final int DEFAULT_INTERVAL = 16; // ms, 一帧
+    public static final int DEFAULT_CAPACITY = 8192; // 行
+
+    // 队列满时的处理策略
+    public static final int OVERFLOW_BLOCK = 0;       // 阻塞接收线程，不丢数据
+    public static final int OVERFLOW_DROP_OLDEST = 1; // 丢弃最旧的行
+    public static final int OVERFLOW_SAMPLE = 2;      // 只保留每 SAMPLE_RATE 行中的一行
+
+    static final int SAMPLE_RATE = 10;
+    private static final long BLOCK_PARK_NANOS = 200000L; // 0.2 ms
+
+    private final Handler handler;
+    private final int what;
+    private final BoundedQueue<ReceivedLine> queue;
+    private volatile int interval = DEFAULT_INTERVAL;
+    private volatile int overflowPolicy = OVERFLOW_DROP_OLDEST;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long lastPublish;
+    private int sampleCounter; // 只在接收线程中使用
+
+    // 统计
+    private final AtomicLong droppedLines = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    // 只在 UI 线程中使用
+    private final ArrayList<ReceivedLine> batch = new ArrayList<ReceivedLine>();
+    // ==========================================================================
+
+
+    LineBatcher(Handler handler, int what) {
+        this(handler, what, DEFAULT_CAPACITY);
+    }
+
+    LineBatcher(Handler handler, int what, int capacity) {
+        this.handler = handler;
+        this.what = what;
+        this.queue = new BoundedQueue<ReceivedLine>(capacity);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 批次间隔，不大于 0 时使用默认值
+     */
+    void setInterval(int interval) {
+        this.interval = (interval > 0) ? interval : DEFAULT_INTERVAL;
+    }
+
+    /**
+     * 队列满时的处理策略 OVERFLOW_*
+     */
+    void setOverflowPolicy(int policy) {
+        if (policy < OVERFLOW_BLOCK || policy > OVERFLOW_SAMPLE) policy = OVERFLOW_DROP_OLDEST;
+        this.overflowPolicy = policy;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 接收线程调用：加入一行，必要时安排一次发送
+     */
+    void add(ReceivedLine line) {
+        if (!queue.offer(line)) onOverflow(line);
+        if (line.prompt) publishNow();
+        else schedule();
+    }
+    // ==========================================================================
+
+
+    /**
+     * UI 线程调用：取走当前批次。返回的列表在下一次调用前有效
+     */
+    public List<ReceivedLine> drain() {
+        // 先清除标志再取数据，取数据期间加入的行会安排新的批次
+        scheduled.set(false);
+        lastPublish = SystemClock.uptimeMillis();
+        batch.clear();
+        // 最多取一个队列容量，接收线程持续写入时也不会一直占住 UI 线程
+        final int limit = queue.capacity();
+        ReceivedLine line;
+        while (batch.size() < limit && (line = queue.poll()) != null) batch.add(line);
+        if (batch.size() == limit) schedule();
+        return batch;
+    }
+    // ==========================================================================
+
+
+    public long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * 队列中等待显示的行数
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+    // ==========================================================================
+
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            final long at = Math.max(SystemClock.uptimeMillis(), lastPublish + interval);
+            handler.sendMessageAtTime(handler.obtainMessage(what, this), at);
+        }
+    }
+
+    /**
+     * 立即发送。已经安排的延迟消息到时取到空批次，不影响结果
+     */
+    private void publishNow() {
+        scheduled.set(true);
+        handler.sendMessage(handler.obtainMessage(what, this));
+    }
+
+    private void onOverflow(ReceivedLine line) {
+        switch (overflowPolicy) {
+            case OVERFLOW_BLOCK:
+                // 等待 UI 线程取走数据；连接关闭时线程被中断，放弃这一行
+                schedule();
+                while (!queue.offer(line)) {
+                    if (Thread.currentThread().isInterrupted() || overflowPolicy != OVERFLOW_BLOCK) {
+                        drop(line);
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                break;
+
+            case OVERFLOW_SAMPLE:
+                // 过载时只保留部分行，给它腾出最旧的位置
+                if (++sampleCounter < SAMPLE_RATE) {
+                    drop(line);
+                    return;
+                }
+                sampleCounter = 0;
+                // fall through
+
+            case OVERFLOW_DROP_OLDEST:
+            default:
+                while (!queue.offer(line)) {
+                    final ReceivedLine oldest = queue.poll();
+                    if (oldest != null) drop(oldest);
+                }
+                break;
+        }
+    }
+
+    private void drop(ReceivedLine line) {
+        droppedLines.incrementAndGet();
+        droppedBytes.addAndGet(line.size);
+    }
+}
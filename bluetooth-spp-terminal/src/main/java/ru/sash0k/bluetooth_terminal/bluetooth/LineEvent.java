@@ -0,0 +1,94 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 经过接收管道的一行
+ * 接收线程中只有一个实例，每一行重复使用，阶段不能保存对它的引用。
+ * 文本在第一次调用 {@link #getText()} 时才创建，被前面的阶段丢弃的行不创建字符串。
+ */
+public final class LineEvent {
+    private byte[] data;
+    private int offset;
+    private int size;
+    private char[] chars;
+    private int charCount;
+    private String text;
+    private long arrivalNanos;
+    private boolean prompt;
+    // ==========================================================================
+
+
+    /**
+     * @param data  - 原始字节，只在处理这一行期间有效
+     * @param chars - 解码并清理后的字符，只在处理这一行期间有效
+     */
+    void set(byte[] data, int offset, int size, char[] chars, int charCount, long arrivalNanos, boolean prompt) {
+        this.data = data;
+        this.offset = offset;
+        this.size = size;
+        this.chars = chars;
+        this.charCount = charCount;
+        this.text = null;
+        this.arrivalNanos = arrivalNanos;
+        this.prompt = prompt;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 解码并清理后的文本
+     */
+    public String getText() {
+        if (text == null) text = new String(chars, 0, charCount);
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = (text == null) ? "" : text;
+    }
+
+    /**
+     * 文本的长度，不创建字符串
+     */
+    public int length() {
+        return (text != null) ? text.length() : charCount;
+    }
+
+    /**
+     * 文本中的字符，不创建字符串
+     */
+    public char charAt(int index) {
+        return (text != null) ? text.charAt(index) : chars[index];
+    }
+
+    /**
+     * 原始字节（字节阶段处理之后，解码之前），阶段不能修改
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * 这一行在链路上的字节数（不含分隔符）
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 第一个字节到达的时间，System.nanoTime()
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /**
+     * 没有换行、在数据停顿后输出的提示符
+     */
+    public boolean isPrompt() {
+        return prompt;
+    }
+}
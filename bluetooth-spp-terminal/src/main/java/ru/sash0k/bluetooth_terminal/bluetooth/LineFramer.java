@@ -0,0 +1,262 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 接收数据分行器
+ * 数据直接读入环形缓冲区，扫描新到的字节并按配置的分隔符切分成行。
+ * 完整的行尽量直接以缓冲区切片的形式交给监听器，只有跨越环形缓冲区末尾时才复制一次。
+ * 超过最大长度的行会被强制切开，内存占用固定。
+ * 每次 read() 的长度根据数据流的实际速率自适应调整。
+ * 每一行带有其第一个字节到达的时间（System.nanoTime()）。
+ */
+final class LineFramer {
+
+    // 分隔符
+    static final int DELIMITER_LF = 0;   // \n
+    static final int DELIMITER_CRLF = 1; // \r\n
+    static final int DELIMITER_CR = 2;   // \r
+    static final int DELIMITER_NUL = 3;  // 0x00
+    static final int DELIMITER_IDLE = 4; // 数据停顿
+
+    static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+    static final int MIN_LINE_LENGTH = 16;
+    static final int MAX_LINE_LENGTH = 65536;
+    static final int DEFAULT_IDLE_GAP = 100; // ms
+    // 没有换行的提示符的最大长度
+    static final int MAX_PROMPT_LENGTH = 64;
+
+    // 自适应读取长度
+    static final int MIN_READ_SIZE = 64;
+    static final int MAX_READ_SIZE = 4096;
+    private static final int INITIAL_READ_SIZE = 512;
+    private static final int SHRINK_AFTER = 4; // 连续多少次读取不足一半时缩小
+
+    // 行是怎样结束的
+    static final int END_DELIMITER = 0; // 收到分隔符
+    static final int END_SPLIT = 1;     // 超长的行被强制切开，后面还有同一行的数据
+    static final int END_FLUSH = 2;     // 数据停顿，未完成的行被输出
+
+    /**
+     * 行监听器。切片只在回调期间有效。
+     * end - END_*
+     * arrivalNanos - 这一行第一个字节被读到的时间，System.nanoTime()
+     */
+    interface Listener {
+        void onLine(byte[] data, int offset, int length, int end, long arrivalNanos);
+    }
+
+    private final Listener listener;
+
+    private int delimiter = DELIMITER_LF;
+    private int maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+    private int idleGap = DEFAULT_IDLE_GAP;
+
+    private byte[] ring;
+    private int mask;
+    private byte[] scratch;
+    // 逻辑位置，按 mask 映射到数组下标
+    private int head; // 当前未完成行的起点
+    private int tail; // 已写入数据的末尾
+    private boolean lastWasCR;
+    private long lineStartNanos; // 当前未完成行第一个字节的到达时间
+
+    private int readSize = INITIAL_READ_SIZE;
+    private int shortReads;
+    // ==========================================================================
+
+
+    LineFramer(Listener listener) {
+        this.listener = listener;
+        allocate();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 设置分行参数，未完成的行先按 END_FLUSH 输出
+     *
+     * @param maxLineLength - 不大于 0 时使用默认值
+     */
+    void configure(int delimiter, int maxLineLength, int idleGap) {
+        if (delimiter < DELIMITER_LF || delimiter > DELIMITER_IDLE) delimiter = DELIMITER_LF;
+        this.delimiter = delimiter;
+        if (maxLineLength <= 0) maxLineLength = DEFAULT_MAX_LINE_LENGTH;
+        this.maxLineLength = Math.max(MIN_LINE_LENGTH, Math.min(MAX_LINE_LENGTH, maxLineLength));
+        this.idleGap = Math.max(1, idleGap);
+        flush();
+        allocate();
+    }
+    // ==========================================================================
+
+
+    int getDelimiter() {
+        return delimiter;
+    }
+
+    int getIdleGap() {
+        return idleGap;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 读取缓冲区。从 {@link #writeOffset()} 开始写入，最多 {@link #writableLength()} 个字节
+     */
+    byte[] buffer() {
+        return ring;
+    }
+
+    int writeOffset() {
+        return tail & mask;
+    }
+
+    /**
+     * 本次可以读取的长度：连续空闲空间与自适应读取长度中的较小值
+     */
+    int writableLength() {
+        final int free = ring.length - (tail - head);
+        final int contiguous = ring.length - (tail & mask);
+        return Math.min(readSize, Math.min(free, contiguous));
+    }
+    // ==========================================================================
+
+
+    /**
+     * 提交读入缓冲区的 count 个字节，切分出完整的行
+     *
+     * @param count  处理后实际有效的字节数
+     * @param readCount read() 返回的原始字节数，用于调整读取长度
+     * @param nanos  read() 返回的时间，System.nanoTime()
+     */
+    void commit(int count, int readCount, long nanos) {
+        adaptReadSize(readCount);
+
+        if (head == tail) lineStartNanos = nanos;
+        int pos = tail;
+        tail += count;
+        for (; pos != tail; pos++) {
+            final byte b = ring[pos & mask];
+            switch (delimiter) {
+                case DELIMITER_LF:
+                    if (b == '\n') {
+                        emit(head, pos - head, END_DELIMITER);
+                        head = pos + 1;
+                        lineStartNanos = nanos;
+                        continue;
+                    }
+                    break;
+                case DELIMITER_CRLF:
+                    if (b == '\n' && lastWasCR && pos - head >= 1) {
+                        lastWasCR = false;
+                        emit(head, pos - head - 1, END_DELIMITER);
+                        head = pos + 1;
+                        lineStartNanos = nanos;
+                        continue;
+                    }
+                    lastWasCR = (b == '\r');
+                    break;
+                case DELIMITER_CR:
+                    if (b == '\r') {
+                        emit(head, pos - head, END_DELIMITER);
+                        head = pos + 1;
+                        lineStartNanos = nanos;
+                        continue;
+                    }
+                    break;
+                case DELIMITER_NUL:
+                    if (b == 0) {
+                        emit(head, pos - head, END_DELIMITER);
+                        head = pos + 1;
+                        lineStartNanos = nanos;
+                        continue;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            // 超长的行强制切开
+            if (pos + 1 - head >= maxLineLength) {
+                emit(head, pos + 1 - head, END_SPLIT);
+                head = pos + 1;
+                lineStartNanos = nanos;
+                lastWasCR = false;
+            }
+        }
+
+        // 缓冲区为空时回到起点，使下一次读取获得最大的连续空间
+        if (head == tail) head = tail = 0;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 是否有未完成的行
+     */
+    boolean hasPending() {
+        return head != tail;
+    }
+
+    /**
+     * 未完成的行看起来是没有换行的提示符（Username:、Switch#、> 等）：
+     * 不超过 MAX_PROMPT_LENGTH，最后一个非空白字节是 ':'、'#'、'>'、'$' 或 '%'
+     */
+    boolean pendingIsPrompt() {
+        if (tail - head > MAX_PROMPT_LENGTH) return false;
+        for (int pos = tail - 1; pos - head >= 0; pos--) {
+            final byte b = ring[pos & mask];
+            if (b == ' ' || b == '\t') continue;
+            return b == ':' || b == '#' || b == '>' || b == '$' || b == '%';
+        }
+        return false;
+    }
+
+    /**
+     * 把未完成的行作为完整行输出（数据停顿，没有换行的提示符，或者连接断开）
+     */
+    void flush() {
+        if (head == tail) return;
+        emit(head, tail - head, END_FLUSH);
+        head = tail = 0;
+        lastWasCR = false;
+    }
+    // ==========================================================================
+
+
+    private void emit(int start, int length, int end) {
+        final int offset = start & mask;
+        if (offset + length <= ring.length) {
+            listener.onLine(ring, offset, length, end, lineStartNanos);
+        } else {
+            // 跨越缓冲区末尾，拼接到临时数组
+            final int first = ring.length - offset;
+            System.arraycopy(ring, offset, scratch, 0, first);
+            System.arraycopy(ring, 0, scratch, first, length - first);
+            listener.onLine(scratch, 0, length, end, lineStartNanos);
+        }
+    }
+
+    private void adaptReadSize(int readCount) {
+        if (readCount >= readSize) {
+            shortReads = 0;
+            readSize = Math.min(readSize << 1, MAX_READ_SIZE);
+        } else if (readCount < (readSize >> 1)) {
+            if (++shortReads >= SHRINK_AFTER) {
+                shortReads = 0;
+                readSize = Math.max(readSize >> 1, MIN_READ_SIZE);
+            }
+        } else {
+            shortReads = 0;
+        }
+    }
+
+    private void allocate() {
+        int capacity = Integer.highestOneBit(maxLineLength + MAX_READ_SIZE - 1) << 1;
+        if (ring == null || ring.length != capacity) {
+            ring = new byte[capacity];
+            mask = capacity - 1;
+        }
+        if (scratch == null || scratch.length != maxLineLength) scratch = new byte[maxLineLength];
+        head = tail = 0;
+        lastWasCR = false;
+    }
+}
@@ -0,0 +1,14 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 接收管道中处理完整行的阶段，在解码之后执行
+ * 在接收线程中调用。
+ */
+public interface LineStage {
+    /**
+     * 处理一行，可以通过 {@link LineEvent#setText(String)} 修改文本
+     *
+     * @return false - 丢弃这一行，后面的阶段不再执行
+     */
+    boolean process(LineEvent line);
+}
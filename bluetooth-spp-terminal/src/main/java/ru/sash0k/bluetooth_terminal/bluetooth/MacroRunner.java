@@ -0,0 +1,180 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.util.concurrent.locks.LockSupport;
+
+import ru.sash0k.bluetooth_terminal.Utils;
+
+/**
+ * 宏（命令序列）执行器
+ * 在自己的线程中依次发送命令，每条命令发送后等待设备的提示符（Switch#、>、$ 等）再发送下一条，
+ * 设备多快，宏就执行多快。
+ * 等待超过单步超时后，本次宏的剩余命令改为按固定间隔发送，提示符无法识别的设备也不会每步都等待超时。
+ * 作为管道的行阶段接收设备输出，只观察，不修改数据。
+ * 命令按宏开始时的设置（CommandEncoder 快照）转换为字节，执行中修改设置不影响这次宏。
+ */
+public final class MacroRunner implements LineStage {
+    public static final String STAGE_NAME = "macro";
+
+    public static final int DEFAULT_STEP_TIMEOUT = 3000; // ms
+    public static final int DEFAULT_FALLBACK_DELAY = 50; // ms
+
+    /**
+     * 在执行线程中调用
+     */
+    public interface Callback {
+        /**
+         * 发送一条命令
+         *
+         * @param data - 已经转换好的字节
+         */
+        void sendMacroCommand(byte[] data);
+
+        /**
+         * 命令无法转换（HEX 模式下不是合法的 hex），这一条被跳过
+         */
+        void onMacroError(String command, String error);
+
+        /**
+         * @param steps    - 发送的命令数
+         * @param timeouts - 等待提示符超时的次数
+         */
+        void onMacroFinished(int steps, int timeouts);
+    }
+
+    private final Callback callback;
+    private volatile int stepTimeout = DEFAULT_STEP_TIMEOUT;
+    private volatile int fallbackDelay = DEFAULT_FALLBACK_DELAY;
+
+    // 收到的提示符个数，接收线程写入
+    private volatile int prompts;
+    private volatile Thread worker;
+    // ==========================================================================
+
+
+    public MacroRunner(Callback callback) {
+        this.callback = callback;
+    }
+    // ==========================================================================
+
+
+    /**
+     * @param stepTimeout   - 等待提示符的最长时间，毫秒，不大于 0 时使用默认值
+     * @param fallbackDelay - 超时后命令之间的间隔，毫秒，小于 0 时使用默认值
+     */
+    public void setTimeouts(int stepTimeout, int fallbackDelay) {
+        this.stepTimeout = (stepTimeout > 0) ? stepTimeout : DEFAULT_STEP_TIMEOUT;
+        this.fallbackDelay = (fallbackDelay >= 0) ? fallbackDelay : DEFAULT_FALLBACK_DELAY;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 执行宏，正在执行的宏被取消
+     *
+     * @param macro   - 命令，以 '\n' 分隔，空行被忽略
+     * @param encoder - 发送设置的快照
+     */
+    public void run(String macro, CommandEncoder encoder) {
+        run(macro.split("\n"), encoder);
+    }
+
+    public synchronized void run(final String[] commands, final CommandEncoder encoder) {
+        cancel();
+        final Thread thread = new Thread("MacroRunner") {
+            @Override
+            public void run() {
+                execute(commands, encoder);
+            }
+        };
+        worker = thread;
+        thread.start();
+    }
+
+    public synchronized void cancel() {
+        final Thread thread = worker;
+        worker = null;
+        if (thread != null) thread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 行阶段：记录提示符，唤醒执行线程
+     */
+    @Override
+    public boolean process(LineEvent line) {
+        final int length = line.length();
+        if (line.isPrompt() || (length > 0 && isPromptChar(line.charAt(length - 1)))) {
+            prompts++;
+            final Thread thread = worker;
+            if (thread != null) LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * 常见的命令行提示符的最后一个字符
+     */
+    static boolean isPromptChar(char last) {
+        return last == '#' || last == '>' || last == '$' || last == '%';
+    }
+    // ==========================================================================
+
+
+    private void execute(String[] commands, CommandEncoder encoder) {
+        final Thread self = Thread.currentThread();
+        int steps = 0, timeouts = 0;
+        boolean paced = false; // 提示符超时后改为固定间隔
+        for (String command : commands) {
+            command = command.trim();
+            if (command.isEmpty()) continue;
+            if (worker != self) return;
+
+            final byte[] data;
+            try {
+                data = encoder.encode(command);
+            } catch (IllegalArgumentException e) {
+                callback.onMacroError(command, e.getMessage());
+                continue;
+            }
+
+            final int seen = prompts;
+            callback.sendMacroCommand(data);
+            steps++;
+
+            if (paced) {
+                LockSupport.parkNanos(fallbackDelay * 1000000L);
+            } else if (!awaitPrompt(seen, self)) {
+                if (worker != self) return;
+                timeouts++;
+                paced = true;
+                Utils.log("MacroRunner: no prompt after '" + command + "', fallback to fixed delay");
+            }
+        }
+        synchronized (this) {
+            if (worker != self) return;
+            worker = null;
+        }
+        callback.onMacroFinished(steps, timeouts);
+    }
+
+    /**
+     * 等待 seen 之后的下一个提示符
+     *
+     * @return false - 超时或被取消
+     */
+    private boolean awaitPrompt(int seen, Thread self) {
+        final long deadline = System.nanoTime() + stepTimeout * 1000000L;
+        while (prompts == seen) {
+            if (worker != self) return false;
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            LockSupport.parkNanos(this, left);
+        }
+        return true;
+    }
+}
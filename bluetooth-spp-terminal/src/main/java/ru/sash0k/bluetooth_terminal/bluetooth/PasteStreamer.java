@@ -0,0 +1,170 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 大段文本（粘贴、分享进来的配置）按块发送
+ * 每次最多一块在发送队列中等待，发送线程被 XOFF 暂停时这里也随之停下，不会把设备的缓冲区灌满。
+ * 进度和速率通过回调报告。
+ * 每块中已经完整发送的行登记到回显跟踪，设备回显的粘贴内容和普通命令一样被去掉。
+ */
+public final class PasteStreamer {
+    public static final int DEFAULT_CHUNK_SIZE = 256; // 字节
+    private static final long PROGRESS_INTERVAL = 100000000L; // 100 ms
+
+    /**
+     * 在发送线程中调用
+     */
+    public interface Callback {
+        /**
+         * @param bytesPerSecond - 从开始到现在的平均速率
+         * @param paused         - 设备发送了 XOFF
+         */
+        void onPasteProgress(long sent, long total, long bytesPerSecond, boolean paused);
+
+        /**
+         * @param completed - false: 被取消或连接断开
+         */
+        void onPasteFinished(boolean completed, long sent, long millis);
+    }
+
+    private final Callback callback;
+    private volatile Thread worker;
+    private long lastReport; // 只在发送线程中使用
+    // ==========================================================================
+
+
+    public PasteStreamer(Callback callback) {
+        this.callback = callback;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 开始发送，正在进行的发送被取消
+     *
+     * @param text       - 按行发送，每行加上 ending
+     * @param chunkSize  - 每块的字节数，不大于 0 时使用默认值
+     * @param chunkDelay - 块之间额外的间隔，毫秒（设备不支持流控时使用）
+     */
+    public synchronized void start(final DeviceConnector connector, String text, Charset charset, byte[] ending,
+                                   int chunkSize, final int chunkDelay) {
+        cancel();
+        final byte[] data = encode(text, charset, ending);
+        final int size = (chunkSize > 0) ? chunkSize : DEFAULT_CHUNK_SIZE;
+        final Thread thread = new Thread("PasteStreamer") {
+            @Override
+            public void run() {
+                stream(connector, data, size, chunkDelay);
+            }
+        };
+        worker = thread;
+        thread.start();
+    }
+
+    public synchronized void cancel() {
+        final Thread thread = worker;
+        worker = null;
+        if (thread != null) thread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 文本按行转换为字节，统一使用 ending 作为行尾
+     */
+    static byte[] encode(String text, Charset charset, byte[] ending) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + 64);
+        final String[] lines = text.split("\r\n|\r|\n", -1);
+        // 末尾的换行不产生空行
+        int count = lines.length;
+        if (count > 1 && lines[count - 1].isEmpty()) count--;
+        for (int i = 0; i < count; i++) {
+            final byte[] line = lines[i].getBytes(charset);
+            out.write(line, 0, line.length);
+            out.write(ending, 0, ending.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void stream(DeviceConnector connector, byte[] data, int chunkSize, int chunkDelay) {
+        final WriterThread writer = connector.getWriter();
+        final Thread self = Thread.currentThread();
+        final long start = System.nanoTime();
+        int sent = 0;
+        boolean completed = false;
+        lastReport = 0;
+
+        if (writer != null) {
+            // 我们的数据在发送线程计数中的起点
+            final long origin = writer.getBytesQueued();
+            long inFlight = -1; // 上一块写完时的计数
+            int echoed = 0; // 已经登记回显的字节数
+            while (worker == self) {
+                final long wait;
+                if (sent < data.length) {
+                    final int length = Math.min(chunkSize, data.length - sent);
+                    writer.enqueue(Arrays.copyOfRange(data, sent, sent + length), false);
+                    sent += length;
+                    echoed = expectEcho(connector, data, echoed, sent);
+                    // 上一块写出之前不提交新的块：队列中最多一块在等待
+                    wait = inFlight;
+                    inFlight = writer.getBytesQueued();
+                } else {
+                    wait = inFlight;
+                    completed = true;
+                }
+
+                // 等待期间（包括被 XOFF 暂停时）定期报告进度
+                while (!writer.awaitWritten(wait, PROGRESS_INTERVAL)) {
+                    if (worker != self || !writer.isRunning()) {
+                        completed = false;
+                        break;
+                    }
+                    report(writer, origin, sent, data.length, start);
+                }
+                if (worker != self || !writer.isRunning()) {
+                    completed = false;
+                    break;
+                }
+                report(writer, origin, sent, data.length, start);
+                if (completed) break;
+                if (chunkDelay > 0) LockSupport.parkNanos(chunkDelay * 1000000L);
+            }
+        }
+
+        synchronized (this) {
+            if (worker == self) worker = null;
+        }
+        callback.onPasteFinished(completed, sent, (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * 登记 [from, to) 中以换行结束的完整行，最后一块之后登记剩余的部分
+     *
+     * @return 已经登记的字节数
+     */
+    private static int expectEcho(DeviceConnector connector, byte[] data, int from, int to) {
+        int end = to;
+        if (to < data.length) {
+            while (end > from && data[end - 1] != '\r' && data[end - 1] != '\n') end--;
+        }
+        if (end > from) connector.expectEcho(data, from, end - from);
+        return end;
+    }
+
+    private void report(WriterThread writer, long origin, int sent, int total, long start) {
+        final long now = System.nanoTime();
+        if (now - lastReport < PROGRESS_INTERVAL && sent < total) return;
+        lastReport = now;
+        final long confirmed = Math.max(0, Math.min(sent, writer.getBytesWritten() - origin));
+        callback.onPasteProgress(confirmed, total, confirmed * 1000000000L / Math.max(1, now - start), writer.isPaused());
+    }
+}
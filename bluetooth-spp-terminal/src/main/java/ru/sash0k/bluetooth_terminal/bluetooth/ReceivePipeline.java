@@ -0,0 +1,194 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 接收管道：字节阶段 -> 分行和解码 -> 行阶段
+ * 阶段按名称管理，可以在任意线程中添加、删除，接收线程从下一段数据开始使用新的列表。
+ * 每个阶段记录耗时和数据量，用来找出限制吞吐量的阶段。
+ */
+public final class ReceivePipeline {
+    // 内置阶段
+    public static final String STAGE_FLOW_CONTROL = "flow-control";     // XON/XOFF 软件流控（可选）
+    public static final String STAGE_ESCAPE = "escape";                 // 去掉 ANSI 转义序列
+    public static final String STAGE_DECODE = "decode";                 // 解码、清理控制字符（固定）
+    public static final String STAGE_ECHO = "echo";                     // 去掉发送命令的回显
+    public static final String STAGE_CONNECT_STATUS = "connect-status"; // 登录前只保留连接状态
+
+    private static final class Entry<S> {
+        final S stage;
+        final StageStats stats;
+
+        Entry(String name, S stage) {
+            this.stage = stage;
+            this.stats = new StageStats(name);
+        }
+    }
+
+    // 写时复制，接收线程遍历时不加锁、不分配内存
+    private volatile Entry<ByteStage>[] byteStages = newArray(0);
+    private volatile Entry<LineStage>[] lineStages = newArray(0);
+    private final StageStats decodeStats = new StageStats(STAGE_DECODE);
+    // ==========================================================================
+
+
+    /**
+     * 在字节阶段末尾添加
+     *
+     * @throws IllegalArgumentException 名称已存在
+     */
+    public synchronized void addByteStage(String name, ByteStage stage) {
+        byteStages = insert(byteStages, byteStages.length, name, stage);
+    }
+
+    /**
+     * 在已有的字节阶段之前添加
+     *
+     * @throws IllegalArgumentException 名称已存在或找不到 before
+     */
+    public synchronized void addByteStageBefore(String before, String name, ByteStage stage) {
+        byteStages = insert(byteStages, indexOf(byteStages, before), name, stage);
+    }
+
+    /**
+     * 在行阶段末尾添加
+     *
+     * @throws IllegalArgumentException 名称已存在
+     */
+    public synchronized void addLineStage(String name, LineStage stage) {
+        lineStages = insert(lineStages, lineStages.length, name, stage);
+    }
+
+    /**
+     * 在已有的行阶段之前添加
+     *
+     * @throws IllegalArgumentException 名称已存在或找不到 before
+     */
+    public synchronized void addLineStageBefore(String before, String name, LineStage stage) {
+        lineStages = insert(lineStages, indexOf(lineStages, before), name, stage);
+    }
+
+    /**
+     * 删除阶段（包括内置阶段）
+     *
+     * @return false - 没有这个阶段
+     */
+    public synchronized boolean remove(String name) {
+        int index = find(byteStages, name);
+        if (index >= 0) {
+            byteStages = delete(byteStages, index);
+            return true;
+        }
+        index = find(lineStages, name);
+        if (index >= 0) {
+            lineStages = delete(lineStages, index);
+            return true;
+        }
+        return false;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 所有阶段的统计，按执行顺序
+     */
+    public List<StageStats> getStats() {
+        final Entry<ByteStage>[] bytes = byteStages;
+        final Entry<LineStage>[] lines = lineStages;
+        final List<StageStats> result = new ArrayList<StageStats>(bytes.length + lines.length + 1);
+        for (Entry<ByteStage> e : bytes) result.add(e.stats);
+        result.add(decodeStats);
+        for (Entry<LineStage> e : lines) result.add(e.stats);
+        return result;
+    }
+
+    public void resetStats() {
+        for (StageStats stats : getStats()) stats.reset();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 接收线程调用：依次执行字节阶段
+     *
+     * @return 处理后的字节数
+     */
+    int processBytes(byte[] buffer, int offset, int length) {
+        for (Entry<ByteStage> e : byteStages) {
+            if (length == 0) break;
+            final long start = System.nanoTime();
+            final int out = e.stage.process(buffer, offset, length);
+            e.stats.record(System.nanoTime() - start, length, out);
+            length = out;
+        }
+        return length;
+    }
+
+    /**
+     * 接收线程调用：记录解码的耗时
+     */
+    void recordDecode(long elapsedNanos, int bytesIn, int charsOut) {
+        decodeStats.record(elapsedNanos, bytesIn, charsOut);
+    }
+
+    /**
+     * 接收线程调用：依次执行行阶段
+     *
+     * @return false - 行被丢弃
+     */
+    boolean processLine(LineEvent line) {
+        for (Entry<LineStage> e : lineStages) {
+            final int in = line.length();
+            final long start = System.nanoTime();
+            final boolean keep = e.stage.process(line);
+            final int out = line.length();
+            final boolean empty = (out == 0);
+            e.stats.record(System.nanoTime() - start, in, (keep && !empty) ? out : 0);
+            if (!keep || empty) {
+                e.stats.recordDrop();
+                return false;
+            }
+        }
+        return true;
+    }
+    // ==========================================================================
+
+
+    @SuppressWarnings("unchecked")
+    private static <S> Entry<S>[] newArray(int length) {
+        return (Entry<S>[]) new Entry[length];
+    }
+
+    private <S> Entry<S>[] insert(Entry<S>[] stages, int index, String name, S stage) {
+        if (stage == null) throw new IllegalArgumentException("stage is null");
+        if (STAGE_DECODE.equals(name) || find(byteStages, name) >= 0 || find(lineStages, name) >= 0) {
+            throw new IllegalArgumentException("Duplicate stage: " + name);
+        }
+        final Entry<S>[] result = newArray(stages.length + 1);
+        System.arraycopy(stages, 0, result, 0, index);
+        result[index] = new Entry<S>(name, stage);
+        System.arraycopy(stages, index, result, index + 1, stages.length - index);
+        return result;
+    }
+
+    private static <S> Entry<S>[] delete(Entry<S>[] stages, int index) {
+        final Entry<S>[] result = newArray(stages.length - 1);
+        System.arraycopy(stages, 0, result, 0, index);
+        System.arraycopy(stages, index + 1, result, index, stages.length - index - 1);
+        return result;
+    }
+
+    private static int indexOf(Entry<?>[] stages, String name) {
+        final int index = find(stages, name);
+        if (index < 0) throw new IllegalArgumentException("No such stage: " + name);
+        return index;
+    }
+
+    private static int find(Entry<?>[] stages, String name) {
+        for (int i = 0; i < stages.length; i++) {
+            if (stages[i].stats.getName().equals(name)) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 从设备收到的一行（原始模式下为一个数据块）
+ */
+public final class ReceivedLine {
+    // 校验和的检查结果
+    public static final int CHECKSUM_NONE = 0; // 没有设置校验和或者原始模式
+    public static final int CHECKSUM_OK = 1;
+    public static final int CHECKSUM_BAD = 2;
+
+    // 解码后的文本（不含校验和），原始模式下为 null
+    public final String text;
+    // 行末尾的校验和 hex 字符，没有设置校验和或者行太短时为 null
+    public final String crc;
+    // 原始模式下的数据块，否则为 null
+    public final byte[] data;
+    // 这一行在链路上的字节数（不含分隔符）
+    public final int size;
+    // 第一个字节到达的时间，System.nanoTime()
+    public final long arrivalNanos;
+    // 没有换行、在数据停顿后输出的提示符（Username:、Switch# 等）
+    public final boolean prompt;
+    // CHECKSUM_*，在转换为文本之前按原始字节检查
+    public final int checksum;
+
+    ReceivedLine(String text, String crc, int size, long arrivalNanos, boolean prompt, int checksum) {
+        this.text = text;
+        this.crc = crc;
+        this.data = null;
+        this.size = size;
+        this.arrivalNanos = arrivalNanos;
+        this.prompt = prompt;
+        this.checksum = checksum;
+    }
+
+    ReceivedLine(byte[] data, long arrivalNanos) {
+        this.text = null;
+        this.crc = null;
+        this.data = data;
+        this.size = data.length;
+        this.arrivalNanos = arrivalNanos;
+        this.prompt = false;
+        this.checksum = CHECKSUM_NONE;
+    }
+
+    /**
+     * 到达时间换算成系统时间，毫秒
+     */
+    public long arrivalTimeMillis() {
+        return System.currentTimeMillis() - (System.nanoTime() - arrivalNanos) / 1000000L;
+    }
+
+    public boolean isRaw() {
+        return data != null;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.util.Random;
+
+/**
+ * 连接断开后重连的间隔
+ * 第一次很快重试（链路只是短暂中断时马上恢复），之后按指数增长到上限。
+ * 每次的间隔在 [d/2, d] 中随机选择，多个终端同时断开时不会同时重连。
+ */
+public final class ReconnectPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long FIRST_DELAY = 500;   // ms
+    public static final long BASE_DELAY = 2000;   // ms，第二次
+    public static final long MAX_DELAY = 60000;   // ms
+
+    private final int maxAttempts;
+    private final long firstDelay, baseDelay, maxDelay;
+    private final Random random = new Random();
+    private int attempts;
+    // ==========================================================================
+
+
+    /**
+     * @param maxAttempts - 最多重试的次数，0 - 不限
+     */
+    public ReconnectPolicy(int maxAttempts, long firstDelay, long baseDelay, long maxDelay) {
+        this.maxAttempts = Math.max(0, maxAttempts);
+        this.firstDelay = firstDelay;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 下一次重试之前等待的时间
+     *
+     * @return 毫秒，次数已经用完时返回 -1
+     */
+    public long nextDelay() {
+        if (maxAttempts > 0 && attempts >= maxAttempts) return -1;
+        attempts++;
+        if (attempts == 1) return firstDelay;
+        // 第二次开始：base * 2^(n-2)，不超过上限
+        final int shift = Math.min(attempts - 2, 30);
+        final long delay = Math.min(maxDelay, baseDelay << shift);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * 已经开始的重试次数
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return 0 - 不限
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 连接成功后从头开始
+     */
+    public void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,84 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+/**
+ * 接收管道中一个阶段的统计：调用次数、耗时、处理的数据量
+ * 只由接收线程写入，其它线程读到的是近似值。
+ */
+public final class StageStats {
+    private final String name;
+    private volatile long calls;
+    private volatile long nanos;
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long dropped; // 被丢弃的行
+    // ==========================================================================
+
+
+    StageStats(String name) {
+        this.name = name;
+    }
+    // ==========================================================================
+
+
+    void record(long elapsedNanos, int in, int out) {
+        calls++;
+        nanos += elapsedNanos;
+        bytesIn += in;
+        bytesOut += out;
+    }
+
+    void recordDrop() {
+        dropped++;
+    }
+    // ==========================================================================
+
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * 总耗时，纳秒
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * 平均每次调用的耗时，微秒
+     */
+    public double getMicrosPerCall() {
+        final long calls = this.calls;
+        return (calls == 0) ? 0 : nanos / (calls * 1000.0);
+    }
+
+    /**
+     * 这一阶段单独能达到的吞吐量，字节/秒
+     */
+    public double getBytesPerSecond() {
+        final long nanos = this.nanos;
+        return (nanos == 0) ? 0 : bytesIn * 1e9 / nanos;
+    }
+    // ==========================================================================
+
+
+    void reset() {
+        calls = nanos = bytesIn = bytesOut = dropped = 0;
+    }
+}
@@ -0,0 +1,148 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 流式字符解码器（UTF-8、GBK 等多字节编码）
+ * 输入和输出缓冲区在多次调用之间复用，不完整的多字节序列保留到下一次调用。
+ * 纯 ASCII 的行直接按字节转换，不经过 CharsetDecoder。
+ */
+final class StreamDecoder {
+    private static final int INITIAL_CAPACITY = 1024;
+    // 未完成的多字节序列最多保留的字节数
+    private static final int MAX_CARRY = 16;
+
+    private final Charset charset;
+    private final CharsetDecoder decoder;
+    private final boolean asciiCompatible;
+
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private CharBuffer output = CharBuffer.allocate(INITIAL_CAPACITY);
+    // 上一次调用剩下的不完整字节
+    private final byte[] carry = new byte[MAX_CARRY];
+    private int carryLength;
+    // ==========================================================================
+
+
+    StreamDecoder(Charset charset) {
+        this.charset = charset;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.asciiCompatible = isAsciiCompatible(charset);
+    }
+    // ==========================================================================
+
+
+    Charset getCharset() {
+        return charset;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 解码一段字节，结果放在 {@link #chars()} 中，在下一次调用前有效
+     *
+     * @param endOfLine - true: 行已结束，不完整的序列按错误替换；
+     *                  false: 行被强制切开，不完整的序列保留到下一次调用
+     * @return 解码得到的字符数
+     */
+    int decode(byte[] src, int offset, int length, boolean endOfLine) {
+        if (carryLength == 0 && asciiCompatible && isAscii(src, offset, length)) {
+            ensureOutput(length);
+            final char[] chars = output.array();
+            for (int i = 0; i < length; i++) chars[i] = (char) src[offset + i];
+            return length;
+        }
+
+        ensureInput(carryLength + length);
+        input.clear();
+        input.put(carry, 0, carryLength);
+        input.put(src, offset, length);
+        input.flip();
+        carryLength = 0;
+
+        ensureOutput(input.remaining() + 1);
+        output.clear();
+        while (true) {
+            CoderResult result = decoder.decode(input, output, endOfLine);
+            if (result.isOverflow()) {
+                growOutput();
+                continue;
+            }
+            break;
+        }
+
+        if (endOfLine) {
+            while (decoder.flush(output).isOverflow()) growOutput();
+            decoder.reset();
+        } else if (input.hasRemaining()) {
+            // 不完整的多字节序列，等下一段数据
+            carryLength = Math.min(input.remaining(), MAX_CARRY);
+            input.get(carry, 0, carryLength);
+        }
+        return output.position();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 解码结果
+     */
+    char[] chars() {
+        return output.array();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 丢弃保留的字节和解码器状态
+     */
+    void reset() {
+        carryLength = 0;
+        decoder.reset();
+    }
+    // ==========================================================================
+
+
+    private static boolean isAscii(byte[] src, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (src[i] < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 0x00..0x7F 是否解码为相同的字符
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        final byte[] ascii = new byte[128];
+        for (int i = 0; i < ascii.length; i++) ascii[i] = (byte) i;
+        final String decoded = new String(ascii, charset);
+        if (decoded.length() != ascii.length) return false;
+        for (int i = 0; i < ascii.length; i++) {
+            if (decoded.charAt(i) != i) return false;
+        }
+        return true;
+    }
+
+    private void ensureInput(int capacity) {
+        if (input.capacity() < capacity) input = ByteBuffer.allocate(Math.max(capacity, input.capacity() << 1));
+    }
+
+    private void ensureOutput(int capacity) {
+        if (output.capacity() < capacity) output = CharBuffer.allocate(Math.max(capacity, output.capacity() << 1));
+    }
+
+    private void growOutput() {
+        final CharBuffer bigger = CharBuffer.allocate(output.capacity() << 1);
+        output.flip();
+        bigger.put(output);
+        output = bigger;
+    }
+}
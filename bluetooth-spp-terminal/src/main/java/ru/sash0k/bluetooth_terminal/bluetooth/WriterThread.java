@@ -0,0 +1,246 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ru.sash0k.bluetooth_terminal.activity.DeviceControlActivity;
+
+/**
+ * 发送线程
+ * 任何线程都可以通过无锁队列提交数据，不会阻塞调用者，也不会和其它发送者的数据交错。
+ * 连续的小块数据合并成一次 socket 写入；优先通道（Ctrl-C 等控制字节）插到排队数据之前。
+ * 软件流控（XOFF）暂停时只停止普通数据，优先通道照常发送。
+ */
+final class WriterThread extends Thread {
+    private static final String TAG = "WriterThread";
+    private static final boolean D = false;
+
+    // 何时调用 flush()
+    static final int FLUSH_EACH_WRITE = 0; // 每次 socket 写入之后
+    static final int FLUSH_WHEN_IDLE = 1;  // 队列清空之后
+
+    // 一次 socket 写入最多合并的字节数
+    static final int MAX_COALESCE = 4096;
+
+    private final OutputStream out;
+    private final Handler handler;
+    private final ConcurrentLinkedQueue<byte[]> priority = new ConcurrentLinkedQueue<byte[]>();
+    private final ConcurrentLinkedQueue<byte[]> bulk = new ConcurrentLinkedQueue<byte[]>();
+    private final byte[] buffer = new byte[MAX_COALESCE];
+    // 已经合并进 buffer 的块，写入后通知界面
+    private final byte[][] pending = new byte[MAX_COALESCE][];
+
+    private volatile int flushPolicy = FLUSH_EACH_WRITE;
+    private volatile boolean running = true;
+    private volatile boolean paused;
+
+    // 提交和已写入 socket 的普通数据字节数
+    private final AtomicLong bytesQueued = new AtomicLong();
+    private volatile long bytesWritten;
+    // 等待数据写出的线程（PasteStreamer）
+    private volatile Thread waiter;
+    // ==========================================================================
+
+
+    WriterThread(OutputStream out, Handler handler) {
+        super("WriterThread");
+        this.out = out;
+        this.handler = handler;
+    }
+    // ==========================================================================
+
+
+    void setFlushPolicy(int policy) {
+        this.flushPolicy = (policy == FLUSH_WHEN_IDLE) ? FLUSH_WHEN_IDLE : FLUSH_EACH_WRITE;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 提交数据，不阻塞。数组在提交后不能再修改
+     *
+     * @param urgent - true: 走优先通道，排在所有普通数据之前发送
+     */
+    void enqueue(byte[] data, boolean urgent) {
+        if (data == null || data.length == 0 || !running) return;
+        if (!urgent) bytesQueued.addAndGet(data.length);
+        (urgent ? priority : bulk).offer(data);
+        LockSupport.unpark(this);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 软件流控：暂停/恢复普通数据的发送
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+        if (!paused) LockSupport.unpark(this);
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 已提交的普通数据字节数
+     */
+    long getBytesQueued() {
+        return bytesQueued.get();
+    }
+
+    /**
+     * 已写入 socket 的普通数据字节数
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 等待已写入的字节数达到 target
+     *
+     * @return false - 超时、线程被中断或发送线程已停止
+     */
+    boolean awaitWritten(long target, long timeoutNanos) {
+        final Thread self = Thread.currentThread();
+        final long deadline = System.nanoTime() + timeoutNanos;
+        waiter = self;
+        try {
+            while (bytesWritten < target) {
+                if (!running || self.isInterrupted()) return false;
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                LockSupport.parkNanos(this, left);
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * 停止线程，返回还没有发送的普通数据（按顺序），优先通道的数据被丢弃。
+     * 正在写入 socket 的一块不在其中
+     */
+    List<byte[]> cancelAndDrain() {
+        running = false;
+        priority.clear();
+        final List<byte[]> unsent = new ArrayList<byte[]>();
+        byte[] data;
+        while ((data = bulk.poll()) != null) unsent.add(data);
+        LockSupport.unpark(this);
+        final Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+        return unsent;
+    }
+
+    /**
+     * 停止线程，未发送的数据被丢弃
+     */
+    void cancel() {
+        running = false;
+        priority.clear();
+        bulk.clear();
+        LockSupport.unpark(this);
+        final Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+    }
+    // ==========================================================================
+
+
+    @Override
+    public void run() {
+        boolean dirty = false; // 写入后还没有 flush()
+        try {
+            while (running) {
+                if (writeNext()) {
+                    dirty = true;
+                    if (flushPolicy == FLUSH_EACH_WRITE) {
+                        out.flush();
+                        dirty = false;
+                    }
+                    continue;
+                }
+                if (dirty) {
+                    out.flush();
+                    dirty = false;
+                }
+                // 没有可发送的数据：等待 enqueue() 或 setPaused(false) 唤醒。先检查一次，避免错过唤醒
+                if (priority.isEmpty() && (paused || bulk.isEmpty()) && running) LockSupport.park(this);
+            }
+        } catch (IOException e) {
+            // 连接断开由接收线程处理
+            if (D) Log.e(TAG, "Exception during write", e);
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * 发送一块优先数据，或者合并后的普通数据
+     *
+     * @return false - 没有数据
+     */
+    private boolean writeNext() throws IOException {
+        byte[] data = priority.poll();
+        if (data != null) {
+            out.write(data);
+            notifyWritten(data);
+            return true;
+        }
+
+        if (paused) return false;
+        data = bulk.peek();
+        if (data == null) return false;
+        if (data.length >= MAX_COALESCE) {
+            bulk.poll();
+            out.write(data);
+            written(data.length);
+            notifyWritten(data);
+            return true;
+        }
+
+        // 合并连续的小块，有优先数据时立即停止
+        int length = 0;
+        int count = 0;
+        while ((data = bulk.peek()) != null
+                && length + data.length <= MAX_COALESCE
+                && priority.isEmpty() && !paused) {
+            bulk.poll();
+            System.arraycopy(data, 0, buffer, length, data.length);
+            length += data.length;
+            pending[count++] = data;
+        }
+        if (count == 0) return true; // 优先数据先发送
+        out.write(buffer, 0, length);
+        written(length);
+        for (int i = 0; i < count; i++) {
+            notifyWritten(pending[i]);
+            pending[i] = null;
+        }
+        return true;
+    }
+
+    private void written(int length) {
+        bytesWritten += length;
+        final Thread w = waiter;
+        if (w != null) LockSupport.unpark(w);
+    }
+
+    private void notifyWritten(byte[] data) {
+        // Share the sent message back to the UI Activity
+        handler.obtainMessage(DeviceControlActivity.MESSAGE_WRITE, -1, -1, data).sendToTarget();
+    }
+}
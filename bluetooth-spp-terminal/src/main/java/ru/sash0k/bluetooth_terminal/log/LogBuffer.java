@@ -0,0 +1,399 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import java.nio.CharBuffer;
+
+/**
+ * 有界的日志模型
+ * 所有行的文本依次存放在一个环形 char 数组中，时间、方向、样式等按行存放在基本类型数组中，
+ * 不保存 HTML 或 Spanned。超过行数或字符数上限时丢弃最旧的行，内存占用只取决于上限，
+ * 与会话时长无关。数组按需增长到上限。
+ * 只在 UI 线程中使用，copy() 得到的副本可以交给其它线程。
+ */
+public final class LogBuffer {
+    public static final int DEFAULT_MAX_LINES = 200000;
+    public static final int DEFAULT_MAX_CHARS = 2 * 1024 * 1024; // 4 MB，完整的历史在会话日志中
+
+    private static final int INITIAL_LINES = 1024;
+    private static final int INITIAL_CHARS = 64 * 1024;
+    // 上限最多占用堆内存的 1/MEMORY_FRACTION（setLimits()、copy() 时短时间内有两份）
+    private static final int MEMORY_FRACTION = 8;
+    // 每行在各个数组中占用的字节数
+    private static final int BYTES_PER_LINE = 4 + 4 + 8 + 1 + 1 + 1 + 2;
+
+    // 方向
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    // 样式
+    public static final int STYLE_NORMAL = 0;
+    public static final int STYLE_COMMAND = 1; // 发送的命令
+    public static final int STYLE_WARNING = 2; // 应用的警告（丢弃数据等）
+
+    // 校验和
+    public static final int CRC_NONE = 0;
+    public static final int CRC_OK = 1;
+    public static final int CRC_BAD = 2;
+
+    private int maxLines;
+    private int maxChars;
+
+    // 文本环：[head, wrapEnd) 和 [0, tail) 或者 [head, tail)
+    private char[] chars = new char[0];
+    private int tail;
+    private boolean wrapped;
+
+    // 行环，最旧的行在 first
+    private int[] start = new int[0];
+    private int[] length = new int[0];
+    private long[] time = new long[0];
+    private byte[] direction = new byte[0];
+    private byte[] style = new byte[0];
+    private byte[] crcStatus = new byte[0];
+    private short[] crcLength = new short[0];
+    private int first;
+    private int count;
+    // 最旧的行的序号，行的序号在整个会话中不变
+    private long firstSequence;
+    private long usedChars;
+    // ==========================================================================
+
+
+    public LogBuffer(int maxLines, int maxChars) {
+        this.maxLines = clampLines((maxLines > 0) ? maxLines : DEFAULT_MAX_LINES);
+        this.maxChars = clampChars((maxChars > 0) ? maxChars : DEFAULT_MAX_CHARS);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 修改上限，超出新上限的最旧的行被丢弃
+     *
+     * @return 丢弃的行数
+     */
+    public int setLimits(int maxLines, int maxChars) {
+        maxLines = clampLines((maxLines > 0) ? maxLines : DEFAULT_MAX_LINES);
+        maxChars = clampChars((maxChars > 0) ? maxChars : DEFAULT_MAX_CHARS);
+        if (maxLines == this.maxLines && maxChars == this.maxChars) return 0;
+
+        final LogBuffer copy = new LogBuffer(maxLines, maxChars);
+        for (int i = 0; i < count; i++) copyLine(i, copy);
+        final int dropped = count - copy.count;
+        copy.firstSequence = firstSequence + dropped;
+        takeFrom(copy);
+        return dropped;
+    }
+
+    /**
+     * 在现有的行之前插入 older 的行（从会话日志恢复的历史），超出上限的最旧的行被丢弃。
+     * 序号不会小于 0：现有的行前面的序号不够时，所有的行从 0 重新编号，
+     * 调用者需要重建按序号保存的数据（搜索索引等）
+     *
+     * @return 现有的行的序号是否改变了
+     */
+    public boolean prepend(LogBuffer older) {
+        final LogBuffer copy = new LogBuffer(maxLines, maxChars);
+        for (int i = 0; i < older.count; i++) older.copyLine(i, copy);
+        for (int i = 0; i < count; i++) copyLine(i, copy);
+        final long first = firstSequence + count - copy.count;
+        copy.firstSequence = Math.max(0, first);
+        takeFrom(copy);
+        return first < 0;
+    }
+
+    public void clear() {
+        firstSequence += count;
+        count = 0;
+        first = 0;
+        tail = 0;
+        wrapped = false;
+        usedChars = 0;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 添加一行
+     *
+     * @param text      - 显示的文本（HEX 模式下已经转换为显示格式）
+     * @param crc       - 单独显示的校验和，没有时为 null
+     * @param crcStatus - CRC_*
+     * @return 为了腾出空间丢弃的行数
+     */
+    public int append(long time, int direction, int style, CharSequence text, CharSequence crc, int crcStatus) {
+        int textLength = text.length();
+        int lineCrcLength = (crc == null) ? 0 : Math.min(crc.length(), Short.MAX_VALUE);
+        if (textLength + lineCrcLength > maxChars) {
+            // 超长的行只保留开头
+            lineCrcLength = Math.min(lineCrcLength, maxChars);
+            textLength = maxChars - lineCrcLength;
+        }
+        final long sequenceBefore = firstSequence;
+
+        if (count == maxLines) evictOldest();
+        if (count == start.length) growLines();
+        final int position = reserve(textLength + lineCrcLength);
+        getChars(text, textLength, chars, position);
+        if (lineCrcLength > 0) getChars(crc, lineCrcLength, chars, position + textLength);
+
+        final int slot = (first + count) % start.length;
+        this.start[slot] = position;
+        this.length[slot] = textLength + lineCrcLength;
+        this.time[slot] = time;
+        this.direction[slot] = (byte) direction;
+        this.style[slot] = (byte) style;
+        this.crcStatus[slot] = (byte) ((crc == null) ? CRC_NONE : crcStatus);
+        this.crcLength[slot] = (short) lineCrcLength;
+        count++;
+        usedChars += textLength + lineCrcLength;
+        return (int) (firstSequence - sequenceBefore);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 行数
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * 第 index 行（0 - 最旧的）的序号
+     */
+    public long getSequence(int index) {
+        return firstSequence + index;
+    }
+
+    /**
+     * 序号对应的行，已经丢弃或者还不存在时返回 -1
+     */
+    public int indexOf(long sequence) {
+        final long index = sequence - firstSequence;
+        return (index >= 0 && index < count) ? (int) index : -1;
+    }
+
+    public long getTime(int index) {
+        return time[slot(index)];
+    }
+
+    public int getDirection(int index) {
+        return direction[slot(index)];
+    }
+
+    public int getStyle(int index) {
+        return style[slot(index)];
+    }
+
+    public int getCrcStatus(int index) {
+        return crcStatus[slot(index)];
+    }
+
+    public int getTextLength(int index) {
+        final int slot = slot(index);
+        return length[slot] - crcLength[slot];
+    }
+
+    public int getCrcLength(int index) {
+        return crcLength[slot(index)];
+    }
+
+    /**
+     * 文本（不含校验和）追加到 sb
+     */
+    public StringBuilder appendText(int index, StringBuilder sb) {
+        final int slot = slot(index);
+        return sb.append(chars, start[slot], length[slot] - crcLength[slot]);
+    }
+
+    /**
+     * 校验和追加到 sb
+     */
+    public StringBuilder appendCrc(int index, StringBuilder sb) {
+        final int slot = slot(index);
+        return sb.append(chars, start[slot] + length[slot] - crcLength[slot], crcLength[slot]);
+    }
+
+    /**
+     * 文本和校验和中的一个字符
+     */
+    public char charAt(int index, int position) {
+        return chars[start[slot(index)] + position];
+    }
+
+    /**
+     * 在文本（不含校验和）中从 from 开始查找 query，不区分大小写
+     *
+     * @return 位置，没有时返回 -1
+     */
+    public int find(int index, CharSequence query, int from) {
+        final int slot = slot(index);
+        final int base = start[slot];
+        final int queryLength = query.length();
+        final int last = length[slot] - crcLength[slot] - queryLength;
+        outer:
+        for (int i = Math.max(0, from); i <= last; i++) {
+            for (int j = 0; j < queryLength; j++) {
+                final char c = chars[base + i + j];
+                final char q = query.charAt(j);
+                if (c != q && Character.toLowerCase(c) != Character.toLowerCase(q)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 所有行占用的字符数
+     */
+    public long getUsedChars() {
+        return usedChars;
+    }
+
+    public int getMaxLines() {
+        return maxLines;
+    }
+
+    public int getMaxChars() {
+        return maxChars;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 设置中的上限不受限制，按可用的堆内存减小，避免分配数组时内存不足
+     */
+    private static int clampLines(int maxLines) {
+        final long limit = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION / BYTES_PER_LINE;
+        return (int) Math.min(maxLines, Math.max(INITIAL_LINES, limit));
+    }
+
+    private static int clampChars(int maxChars) {
+        final long limit = Runtime.getRuntime().maxMemory() / MEMORY_FRACTION / 2;
+        return (int) Math.min(maxChars, Math.max(INITIAL_CHARS, limit));
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+        final int slot = first + index;
+        return (slot < start.length) ? slot : slot - start.length;
+    }
+
+    private void copyLine(int index, LogBuffer to) {
+        final int slot = slot(index);
+        final int textLength = length[slot] - crcLength[slot];
+        to.append(time[slot], direction[slot], style[slot],
+                CharBuffer.wrap(chars, start[slot], textLength),
+                (crcStatus[slot] == CRC_NONE) ? null : CharBuffer.wrap(chars, start[slot] + textLength, crcLength[slot]),
+                crcStatus[slot]);
+    }
+
+    private void evictOldest() {
+        final int slot = first;
+        usedChars -= length[slot];
+        first = (first + 1 == start.length) ? 0 : first + 1;
+        count--;
+        firstSequence++;
+        if (count == 0) {
+            first = 0;
+            tail = 0;
+            wrapped = false;
+        } else if (wrapped && start[first] < start[slot]) {
+            // 最旧的行已经在数组开头，不再有绕回
+            wrapped = false;
+        }
+    }
+
+    /**
+     * 在文本环中找到 total 个连续的位置，必要时丢弃最旧的行
+     *
+     * @return 起始位置
+     */
+    private int reserve(int total) {
+        while (true) {
+            if (count == 0) {
+                tail = 0;
+                wrapped = false;
+                if (chars.length < total) growChars(total);
+                break;
+            }
+            final int head = start[first];
+            if (!wrapped) {
+                if (tail + total <= chars.length) break;
+                if (chars.length < maxChars) {
+                    growChars(tail + total);
+                    continue;
+                }
+                wrapped = true;
+                tail = 0;
+            } else {
+                if (tail + total <= head) break;
+                evictOldest();
+            }
+        }
+        final int position = tail;
+        tail += total;
+        return position;
+    }
+
+    private void growChars(int needed) {
+        int capacity = Math.max(chars.length, INITIAL_CHARS);
+        while (capacity < needed) capacity *= 2;
+        capacity = Math.min(capacity, maxChars);
+        final char[] grown = new char[capacity];
+        // 只在没有绕回时增长，有效数据从 0 到 tail
+        System.arraycopy(chars, 0, grown, 0, Math.min(tail, chars.length));
+        chars = grown;
+    }
+
+    private void growLines() {
+        final int capacity = Math.min(Math.max(start.length * 2, INITIAL_LINES), maxLines);
+        final int size = start.length;
+        start = unroll(start, new int[capacity], size);
+        length = unroll(length, new int[capacity], size);
+        time = unroll(time, new long[capacity], size);
+        direction = unroll(direction, new byte[capacity], size);
+        style = unroll(style, new byte[capacity], size);
+        crcStatus = unroll(crcStatus, new byte[capacity], size);
+        crcLength = unroll(crcLength, new short[capacity], size);
+        first = 0;
+    }
+
+    /**
+     * 按从旧到新的顺序复制到新数组的开头
+     *
+     * @param size - 原来的数组长度（所有行数组的长度相同）
+     */
+    private <T> T unroll(T from, T to, int size) {
+        final int firstPart = Math.min(count, size - first);
+        System.arraycopy(from, first, to, 0, firstPart);
+        System.arraycopy(from, 0, to, firstPart, count - firstPart);
+        return to;
+    }
+
+    private void takeFrom(LogBuffer other) {
+        maxLines = other.maxLines;
+        maxChars = other.maxChars;
+        chars = other.chars;
+        tail = other.tail;
+        wrapped = other.wrapped;
+        start = other.start;
+        length = other.length;
+        time = other.time;
+        direction = other.direction;
+        style = other.style;
+        crcStatus = other.crcStatus;
+        crcLength = other.crcLength;
+        first = other.first;
+        count = other.count;
+        firstSequence = other.firstSequence;
+        usedChars = other.usedChars;
+    }
+
+    private static void getChars(CharSequence text, int length, char[] out, int offset) {
+        if (text instanceof String) {
+            ((String) text).getChars(0, length, out, offset);
+        } else {
+            for (int i = 0; i < length; i++) out[offset + i] = text.charAt(i);
+        }
+    }
+}
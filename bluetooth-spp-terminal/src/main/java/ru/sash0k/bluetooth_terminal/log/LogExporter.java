@@ -0,0 +1,281 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+import ru.sash0k.bluetooth_terminal.Utils;
+
+/**
+ * 日志导出为文本文件（可以用 gzip 压缩），在后台线程中逐行读取、逐行写出，
+ * 内存占用和日志大小无关。
+ * 来源是会话日志的文件，或者没有会话日志时内存中的日志：日志只在 UI 线程中访问，
+ * 导出线程每次请求 CHUNK_LINES 行，在 UI 线程中格式化后交给导出线程写出，不复制整个日志。
+ */
+public final class LogExporter {
+    private static final long PROGRESS_INTERVAL = 100000000L; // 100 ms
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 内存中的日志每次在 UI 线程中格式化的行数
+    static final int CHUNK_LINES = 1000;
+
+    /**
+     * 在导出线程中调用
+     */
+    public interface Callback {
+        void onExportProgress(long done, long total);
+
+        /**
+         * @param file      - 导出的文件，失败或者被取消时为 null
+         * @param cancelled - 被 cancel() 或者新的导出取消
+         */
+        void onExportFinished(File file, boolean cancelled);
+    }
+
+    private final Callback callback;
+    private volatile Thread worker;
+    private long lastReport; // 只在导出线程中使用
+    // ==========================================================================
+
+
+    public LogExporter(Callback callback) {
+        this.callback = callback;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 导出会话日志的文件，只读取每个文件现在的长度（之后追加的记录不导出）
+     *
+     * @param files - 按顺序
+     */
+    public synchronized void start(final List<File> files, final File out, final boolean gzip,
+                                   final boolean showTimings, final boolean showDirection) {
+        cancel();
+        final long[] limits = new long[files.size()];
+        long total = 0;
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = files.get(i).length();
+            total += limits[i];
+        }
+        final long size = total;
+        final Thread thread = new Thread("LogExporter") {
+            @Override
+            public void run() {
+                final TimeFormatter timeFormatter = new TimeFormatter();
+                final SessionLog.Record record = new SessionLog.Record();
+                final StringBuilder sb = new StringBuilder(256);
+                long done = 0;
+                boolean completed = false;
+                try {
+                    final Writer writer = open(out, gzip);
+                    try {
+                        for (int i = 0; i < limits.length && worker == this; i++) {
+                            final CountingInputStream in = new CountingInputStream(
+                                    new FileInputStream(files.get(i)), limits[i]);
+                            final BufferedReader reader = new BufferedReader(
+                                    new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+                            try {
+                                String line;
+                                while ((line = reader.readLine()) != null && worker == this) {
+                                    if (!SessionLog.parse(line, record)) continue;
+                                    sb.setLength(0);
+                                    appendPrefix(sb, timeFormatter, record.time, record.direction, showTimings, showDirection);
+                                    writer.append(sb).append(record.text).append('\n');
+                                    report(done + in.count, size);
+                                }
+                            } finally {
+                                reader.close();
+                            }
+                            done += limits[i];
+                        }
+                        completed = (worker == this);
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    Utils.loge("LogExporter: export failed", e);
+                }
+                finish(this, out, completed);
+            }
+        };
+        worker = thread;
+        thread.start();
+    }
+
+    /**
+     * 导出内存中的日志，在 UI 线程中调用。只导出现有的行，导出期间被丢弃的行跳过
+     */
+    public synchronized void start(final LogBuffer log, final File out, final boolean gzip,
+                                   final boolean showTimings, final boolean showDirection) {
+        cancel();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final TimeFormatter timeFormatter = new TimeFormatter(); // 只在 UI 线程中使用
+        final long first = log.getSequence(0);
+        final long end = first + log.size();
+        final Thread thread = new Thread("LogExporter") {
+            @Override
+            public void run() {
+                long next = first;
+                boolean completed = false;
+                try {
+                    final Writer writer = open(out, gzip);
+                    try {
+                        while (next < end && worker == this) {
+                            final Chunk chunk = new Chunk(log, next, end, timeFormatter, showTimings, showDirection);
+                            handler.post(chunk);
+                            chunk.done.await();
+                            writer.append(chunk.text);
+                            next = chunk.next;
+                            report(next - first, end - first);
+                        }
+                        completed = (worker == this);
+                    } finally {
+                        writer.close();
+                    }
+                } catch (IOException e) {
+                    Utils.loge("LogExporter: export failed", e);
+                } catch (InterruptedException e) {
+                    // 被 cancel() 中断
+                }
+                finish(this, out, completed);
+            }
+        };
+        worker = thread;
+        thread.start();
+    }
+
+    public synchronized void cancel() {
+        final Thread thread = worker;
+        worker = null;
+        if (thread != null) thread.interrupt();
+    }
+
+    public boolean isRunning() {
+        return worker != null;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 行前缀："[HH:mm:ss.SSS]" 和方向 " << "、" >> "，没有方向时一个空格
+     */
+    public static void appendPrefix(StringBuilder sb, TimeFormatter timeFormatter, long time, int direction,
+                                    boolean showTimings, boolean showDirection) {
+        if (showTimings) timeFormatter.append(sb.append('['), time).append(']');
+        if (showDirection) sb.append((direction == LogBuffer.DIRECTION_OUT) ? " << " : " >> ");
+        else sb.append(' ');
+    }
+    // ==========================================================================
+
+
+    private static Writer open(File out, boolean gzip) throws IOException {
+        OutputStream stream = new FileOutputStream(out);
+        if (gzip) stream = new GZIPOutputStream(stream, BUFFER_SIZE);
+        return new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+    }
+
+    private void report(long done, long total) {
+        final long now = System.nanoTime();
+        if (now - lastReport < PROGRESS_INTERVAL) return;
+        lastReport = now;
+        callback.onExportProgress(done, total);
+    }
+
+    private void finish(Thread self, File out, boolean completed) {
+        final boolean cancelled;
+        synchronized (this) {
+            cancelled = (worker != self);
+            if (!cancelled) worker = null;
+        }
+        if (!completed) out.delete();
+        callback.onExportFinished(completed ? out : null, cancelled);
+    }
+    // ==========================================================================
+
+
+    /**
+     * 在 UI 线程中格式化内存中日志的一段：从序号 from 开始最多 CHUNK_LINES 行，不超过 end
+     */
+    private static final class Chunk implements Runnable {
+        final CountDownLatch done = new CountDownLatch(1);
+        final StringBuilder text = new StringBuilder(CHUNK_LINES * 64);
+        // 下一段的起点，日志已经清空时为 end
+        long next;
+        private final LogBuffer log;
+        private final long from, end;
+        private final TimeFormatter timeFormatter;
+        private final boolean showTimings, showDirection;
+
+        Chunk(LogBuffer log, long from, long end, TimeFormatter timeFormatter,
+              boolean showTimings, boolean showDirection) {
+            this.log = log;
+            this.from = from;
+            this.end = end;
+            this.timeFormatter = timeFormatter;
+            this.showTimings = showTimings;
+            this.showDirection = showDirection;
+        }
+
+        @Override
+        public void run() {
+            final long first = log.getSequence(0);
+            final int size = log.size();
+            long sequence = Math.max(from, first);
+            int index = (int) (sequence - first);
+            for (int n = 0; n < CHUNK_LINES && sequence < end && index < size; n++, sequence++, index++) {
+                appendPrefix(text, timeFormatter, log.getTime(index), log.getDirection(index), showTimings, showDirection);
+                log.appendText(index, text);
+                log.appendCrc(index, text).append('\n');
+            }
+            // 剩下的行已经不在日志中（被清空）
+            next = (sequence < end && index >= size) ? end : sequence;
+            done.countDown();
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * 读取的字节数，最多读到 limit
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+        private final long limit;
+
+        CountingInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (count >= limit) return -1;
+            final int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (count >= limit) return -1;
+            final int n = super.read(b, off, (int) Math.min(len, limit - count));
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
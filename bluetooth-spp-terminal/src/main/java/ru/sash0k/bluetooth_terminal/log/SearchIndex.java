@@ -0,0 +1,469 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 日志的全文索引：每个三字符组（不区分大小写）对应包含它的行的序号列表
+ * 调用者（UI 线程）只把新行的文本追加到缓冲区，建索引和查询都在后台线程中进行。
+ * 行按序号递增加入，所以每个列表都是有序的，查询时从最短的列表开始求交集。
+ * 索引同时保存每行的文本（小写），三字符组都出现的候选行在后台线程中按文本确认，
+ * 太短不能使用索引的查询也在后台线程中检查所有行，UI 线程只收到确认的结果。
+ * 从日志中丢弃的行在查询时跳过，占用的空间在丢弃的行足够多时一次回收。
+ */
+public final class SearchIndex {
+    // 至少这么长的查询才能使用索引
+    public static final int MIN_QUERY = 3;
+
+    private static final int INITIAL_TABLE = 4096;
+    private static final int INITIAL_POSTINGS = 4;
+
+    /**
+     * 查询结果，在 Handler 中收到
+     */
+    public static final class Result {
+        public final String query;
+        // 包含查询（不区分大小写）的行的序号，递增
+        public final long[] matches;
+
+        Result(String query, long[] matches) {
+            this.query = query;
+            this.matches = matches;
+        }
+    }
+
+    /**
+     * 查询结果的接收者，在后台线程中调用
+     */
+    public interface Listener {
+        void onSearchResult(Result result);
+    }
+
+    private static final class Query {
+        final String query;
+        final Listener listener;
+
+        Query(String query, Listener listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+    }
+
+    // 以下字段由 lock 保护
+    private final Object lock = new Object();
+    private StringBuilder pending = new StringBuilder();
+    private long[] pendingSequences = new long[256];
+    private int[] pendingEnds = new int[256];
+    private int pendingCount;
+    private List<Query> queries = new ArrayList<Query>();
+    private long firstLive;
+    private boolean clearRequested;
+
+    // 以下字段只在后台线程中使用
+    private StringBuilder indexing = new StringBuilder();
+    private long[] indexingSequences = new long[256];
+    private int[] indexingEnds = new int[256];
+    private List<Query> running = new ArrayList<Query>();
+    // 列表中保存相对于 base 的序号，empty 时 base 还没有确定
+    private long base;
+    private boolean empty = true;
+    // 开放寻址的哈希表：三字符组 -> 列表
+    private long[] keys = new long[INITIAL_TABLE];
+    private int[][] postings = new int[INITIAL_TABLE][];
+    private int[] sizes = new int[INITIAL_TABLE];
+    private int used;
+    // 建过索引的行的文本（小写）：lineRelatives[i] 行在 texts[lineEnds[i - 1], lineEnds[i]) 中
+    private char[] texts = new char[INITIAL_TABLE * 16];
+    private int textLength;
+    private int[] lineRelatives = new int[INITIAL_TABLE];
+    private int[] lineEnds = new int[INITIAL_TABLE];
+    private int lines;
+    // 最新的行，上次回收时的 firstLive
+    private long newest;
+    private long compactedLive;
+    private final char[] lower = new char[3];
+    // ==========================================================================
+
+
+    public SearchIndex() {
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                workLoop();
+            }
+        }, "SearchIndex");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 加入一行，序号必须大于之前加入的行
+     */
+    public void add(long sequence, CharSequence text) {
+        synchronized (lock) {
+            if (pendingCount == pendingEnds.length) {
+                pendingEnds = Arrays.copyOf(pendingEnds, pendingCount * 2);
+                pendingSequences = Arrays.copyOf(pendingSequences, pendingCount * 2);
+            }
+            pending.append(text);
+            pendingSequences[pendingCount] = sequence;
+            pendingEnds[pendingCount] = pending.length();
+            pendingCount++;
+            if (pendingCount == 1) lock.notify();
+        }
+    }
+
+    /**
+     * 序号小于 sequence 的行已经从日志中丢弃
+     */
+    public void evictBefore(long sequence) {
+        synchronized (lock) {
+            if (sequence > firstLive) firstLive = sequence;
+        }
+    }
+
+    /**
+     * 删除所有行，之后加入的行可以使用任何序号
+     */
+    public void clear() {
+        synchronized (lock) {
+            pending.setLength(0);
+            pendingCount = 0;
+            firstLive = 0;
+            clearRequested = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * 查询在已经加入的行（包括还没有建索引的）中进行，结果作为 what 消息的 obj 发给 handler
+     */
+    public void query(String query, final Handler handler, final int what) {
+        query(query, new Listener() {
+            @Override
+            public void onSearchResult(Result result) {
+                handler.obtainMessage(what, result).sendToTarget();
+            }
+        });
+    }
+
+    /**
+     * 查询，结果在后台线程中交给 listener
+     */
+    public void query(String query, Listener listener) {
+        synchronized (lock) {
+            queries.add(new Query(query, listener));
+            lock.notify();
+        }
+    }
+    // ==========================================================================
+
+
+    private void workLoop() {
+        while (true) {
+            final int count;
+            final long live;
+            try {
+                synchronized (lock) {
+                    while (pendingCount == 0 && queries.isEmpty() && !clearRequested) lock.wait();
+                    if (clearRequested) {
+                        clearRequested = false;
+                        clearIndex();
+                    }
+                    final StringBuilder sb = indexing;
+                    indexing = pending;
+                    pending = sb;
+                    final long[] sequences = indexingSequences;
+                    indexingSequences = pendingSequences;
+                    pendingSequences = sequences;
+                    final int[] ends = indexingEnds;
+                    indexingEnds = pendingEnds;
+                    pendingEnds = ends;
+                    count = pendingCount;
+                    pendingCount = 0;
+                    final List<Query> list = running;
+                    running = queries;
+                    queries = list;
+                    live = firstLive;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                addLine(indexingSequences[i], indexing, start, indexingEnds[i]);
+                start = indexingEnds[i];
+            }
+            indexing.setLength(0);
+            compactIfNeeded(live);
+            for (Query query : running) {
+                query.listener.onSearchResult(new Result(query.query, find(query.query, live)));
+            }
+            running.clear();
+        }
+    }
+
+    private void clearIndex() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(postings, null);
+        Arrays.fill(sizes, 0);
+        used = 0;
+        lines = 0;
+        textLength = 0;
+        base = 0;
+        empty = true;
+        compactedLive = 0;
+    }
+    // ==========================================================================
+
+
+    private void addLine(long sequence, CharSequence text, int start, int end) {
+        if (empty) {
+            base = sequence;
+            empty = false;
+        }
+        newest = sequence;
+        final int relative = (int) (sequence - base);
+        storeText(relative, text, start, end);
+        for (int i = start; i + 3 <= end; i++) {
+            final long key = key(text.charAt(i), text.charAt(i + 1), text.charAt(i + 2));
+            final int slot = slotFor(key, true);
+            final int size = sizes[slot];
+            int[] list = postings[slot];
+            // 一行中重复的三字符组只记一次
+            if (size > 0 && list[size - 1] == relative) continue;
+            if (size == list.length) {
+                list = Arrays.copyOf(list, size * 2);
+                postings[slot] = list;
+            }
+            list[size] = relative;
+            sizes[slot] = size + 1;
+        }
+    }
+
+    /**
+     * 上次回收后丢弃的行比仍然在日志中的行多时，从所有列表中删除丢弃的行
+     */
+    private void compactIfNeeded(long live) {
+        if (empty || live - compactedLive < Math.max(1024, newest - live)) return;
+        final int firstRelative = (int) Math.max(0, live - base);
+        for (int slot = 0; slot < keys.length; slot++) {
+            final int[] list = postings[slot];
+            if (list == null) continue;
+            final int size = sizes[slot];
+            final int from = lowerBound(list, size, firstRelative);
+            if (from > 0) {
+                System.arraycopy(list, from, list, 0, size - from);
+                sizes[slot] = size - from;
+                // 大部分已经删除的列表缩小
+                if (sizes[slot] < list.length / 4 && list.length > INITIAL_POSTINGS) {
+                    postings[slot] = Arrays.copyOf(list, Math.max(INITIAL_POSTINGS, sizes[slot] * 2));
+                }
+            }
+        }
+        compactText(firstRelative);
+        compactedLive = live;
+    }
+    // ==========================================================================
+
+
+    private void storeText(int relative, CharSequence text, int start, int end) {
+        if (lines == lineEnds.length) {
+            lineEnds = Arrays.copyOf(lineEnds, lines * 2);
+            lineRelatives = Arrays.copyOf(lineRelatives, lines * 2);
+        }
+        final int length = end - start;
+        if (textLength + length > texts.length) {
+            texts = Arrays.copyOf(texts, Math.max(texts.length * 2, textLength + length));
+        }
+        for (int i = start; i < end; i++) texts[textLength++] = Character.toLowerCase(text.charAt(i));
+        lineRelatives[lines] = relative;
+        lineEnds[lines] = textLength;
+        lines++;
+    }
+
+    /**
+     * 删除丢弃的行的文本
+     */
+    private void compactText(int firstRelative) {
+        final int from = lowerBound(lineRelatives, lines, firstRelative);
+        if (from == 0) return;
+        final int offset = lineEnds[from - 1];
+        System.arraycopy(texts, offset, texts, 0, textLength - offset);
+        textLength -= offset;
+        lines -= from;
+        System.arraycopy(lineRelatives, from, lineRelatives, 0, lines);
+        for (int i = 0; i < lines; i++) lineEnds[i] = lineEnds[from + i] - offset;
+        if (texts.length > INITIAL_TABLE * 16 && textLength < texts.length / 4) {
+            texts = Arrays.copyOf(texts, Math.max(INITIAL_TABLE * 16, textLength * 2));
+        }
+    }
+
+    /**
+     * 第 line 行的文本是否包含 query（已经是小写）
+     */
+    private boolean contains(int line, char[] query) {
+        final int start = (line == 0) ? 0 : lineEnds[line - 1];
+        final int last = lineEnds[line] - query.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < query.length; j++) {
+                if (texts[i + j] != query[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+    // ==========================================================================
+
+
+    /**
+     * @return 包含 query 的行的序号
+     */
+    private long[] find(String query, long live) {
+        if (empty) return new long[0];
+        final char[] lowerQuery = new char[query.length()];
+        for (int i = 0; i < lowerQuery.length; i++) lowerQuery[i] = Character.toLowerCase(query.charAt(i));
+        final int firstRelative = (int) Math.max(0, live - base);
+        if (query.length() < MIN_QUERY) return scan(lowerQuery, firstRelative);
+
+        final int trigrams = query.length() - 2;
+        final int[] slots = new int[trigrams];
+        for (int i = 0; i < trigrams; i++) {
+            final int slot = slotFor(key(query.charAt(i), query.charAt(i + 1), query.charAt(i + 2)), false);
+            if (slot < 0 || sizes[slot] == 0) return new long[0];
+            slots[i] = slot;
+        }
+        // 最短的列表在前
+        int shortest = 0;
+        for (int i = 1; i < trigrams; i++) {
+            if (sizes[slots[i]] < sizes[slots[shortest]]) shortest = i;
+        }
+        final int[] first = postings[slots[shortest]];
+        final int firstSize = sizes[slots[shortest]];
+        final int[] positions = new int[trigrams];
+        long[] result = new long[16];
+        int count = 0;
+        int line = 0;
+        candidates:
+        for (int i = lowerBound(first, firstSize, firstRelative); i < firstSize; i++) {
+            final int relative = first[i];
+            for (int t = 0; t < trigrams; t++) {
+                if (t == shortest) continue;
+                final int[] list = postings[slots[t]];
+                final int size = sizes[slots[t]];
+                // 候选行递增，在每个列表中的位置只向前移动
+                int p = positions[t];
+                if (p < size && list[p] < relative) {
+                    p = lowerBound(list, size, relative, p);
+                    positions[t] = p;
+                }
+                if (p >= size) break candidates;
+                if (list[p] != relative) continue candidates;
+            }
+            // 三字符组都出现，按文本确认
+            line = lowerBound(lineRelatives, lines, relative, line);
+            if (line >= lines) break;
+            if (lineRelatives[line] != relative || !contains(line, lowerQuery)) continue;
+            if (count == result.length) result = Arrays.copyOf(result, count * 2);
+            result[count++] = base + relative;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * 太短的查询：检查所有仍然在日志中的行
+     */
+    private long[] scan(char[] query, int firstRelative) {
+        long[] result = new long[16];
+        int count = 0;
+        for (int line = lowerBound(lineRelatives, lines, firstRelative); line < lines; line++) {
+            if (!contains(line, query)) continue;
+            if (count == result.length) result = Arrays.copyOf(result, count * 2);
+            result[count++] = base + lineRelatives[line];
+        }
+        return Arrays.copyOf(result, count);
+    }
+    // ==========================================================================
+
+
+    private long key(char a, char b, char c) {
+        lower[0] = Character.toLowerCase(a);
+        lower[1] = Character.toLowerCase(b);
+        lower[2] = Character.toLowerCase(c);
+        // 0 表示空位置
+        return (((long) lower[0] << 32) | ((long) lower[1] << 16) | lower[2]) + 1;
+    }
+
+    /**
+     * @param create - 没有时加入
+     * @return 位置，没有时返回 -1
+     */
+    private int slotFor(long key, boolean create) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+        if (!create) return -1;
+        if ((used + 1) * 4 > keys.length * 3) {
+            rehash();
+            mask = keys.length - 1;
+            slot = hash(key) & mask;
+            while (keys[slot] != 0) slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        postings[slot] = new int[INITIAL_POSTINGS];
+        sizes[slot] = 0;
+        used++;
+        return slot;
+    }
+
+    private void rehash() {
+        final long[] oldKeys = keys;
+        final int[][] oldPostings = postings;
+        final int[] oldSizes = sizes;
+        keys = new long[oldKeys.length * 2];
+        postings = new int[keys.length][];
+        sizes = new int[keys.length];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != 0) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            postings[slot] = oldPostings[i];
+            sizes[slot] = oldSizes[i];
+        }
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int lowerBound(int[] list, int size, int value) {
+        return lowerBound(list, size, value, 0);
+    }
+
+    /**
+     * list[from, size) 中第一个不小于 value 的位置
+     */
+    private static int lowerBound(int[] list, int size, int value, int from) {
+        int low = from;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (list[mid] < value) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,638 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import android.os.Handler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ru.sash0k.bluetooth_terminal.Utils;
+
+/**
+ * 会话日志：每次连接的全部日志按行追加到应用目录中的文件
+ * <pre>
+ * sessions/
+ *   current                      - 正在写入的文件的路径，会话正常结束时删除
+ *   001122AABBCC/                - 每个设备地址一个目录
+ *     0001700000000000_000.log   - 会话开始的时间_分片序号
+ * </pre>
+ * 文件是 UTF-8 文本，一行一条记录，字段以 '\t' 分隔：
+ * <pre>
+ * S  time  part  address  name                           - 会话（分片）开始
+ * L  time  direction  style  crcStatus  crcLength  text  - 日志行，text 包含末尾的校验和
+ * E  time  reason                                       - 分片结束：closed、rotated 或 recovered
+ * </pre>
+ * text 和 name 中的 '\\'、'\t'、'\r'、'\n' 写成 "\\\\"、"\\t"、"\\r"、"\\n"。
+ * <p>
+ * 调用者（UI 线程和接收线程）只把记录追加到内存中的缓冲区，写文件在后台线程中进行：
+ * 第一条记录到达后最多等待 FLUSH_INTERVAL_MS 或者积累 BATCH_CHARS 个字符，一次写入。
+ * 文件超过 fileLimit 时换到下一个分片，一个设备的文件总大小超过 deviceLimit 时删除最旧的。
+ * 进程被杀死后 current 仍然存在：下次启动时截掉最后一条不完整的记录，补上结束记录。
+ */
+public final class SessionLog {
+    public static final int DEFAULT_FILE_LIMIT = 4 * 1024 * 1024;
+    public static final long DEFAULT_DEVICE_LIMIT = 64L * 1024 * 1024;
+
+    static final long FLUSH_INTERVAL_MS = 250;
+    static final int BATCH_CHARS = 64 * 1024;
+
+    private static final String CURRENT = "current";
+    private static final String SUFFIX = ".log";
+    private static final String END_CLOSED = "closed";
+    private static final String END_ROTATED = "rotated";
+    private static final String END_RECOVERED = "recovered";
+
+    // 控制操作，在记录流中的位置由 Control.at 给出
+    private static final int CONTROL_START = 0;
+    private static final int CONTROL_END = 1;
+    private static final int CONTROL_RESTORE = 2;
+    private static final int CONTROL_TASK = 3;
+
+    /**
+     * 一条日志行记录
+     */
+    static final class Record {
+        long time;
+        int direction;
+        int style;
+        int crcStatus;
+        int crcLength;
+        // 文本和末尾的校验和
+        final StringBuilder text = new StringBuilder();
+
+        int textLength() {
+            return Math.max(0, text.length() - crcLength);
+        }
+    }
+
+    private static final class Control {
+        final int type;
+        int at;
+        String address;
+        String name;
+        long time;
+        File file;
+        LogBuffer into;
+        Handler handler;
+        int what;
+        Runnable task;
+
+        Control(int type) {
+            this.type = type;
+        }
+    }
+
+    private final File root;
+    private final int fileLimit;
+    private final long deviceLimit;
+
+    // 以下字段由 lock 保护
+    private final Object lock = new Object();
+    private StringBuilder pending = new StringBuilder();
+    private List<Control> controls = new ArrayList<Control>();
+    private boolean flushRequested;
+    private boolean sessionOpen;
+
+    // 只在写入线程中使用
+    private StringBuilder writing = new StringBuilder();
+    private List<Control> running = new ArrayList<Control>();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocate(16 * 1024);
+    private FileOutputStream out;
+    private FileChannel channel;
+    private long fileSize;
+    private long sessionStart;
+    private int part;
+    private String address, name;
+    // ==========================================================================
+
+
+    /**
+     * @param root - 会话目录，不存在时创建
+     */
+    public SessionLog(File root, int fileLimit, long deviceLimit) {
+        this.root = root;
+        this.fileLimit = (fileLimit > 0) ? fileLimit : DEFAULT_FILE_LIMIT;
+        this.deviceLimit = (deviceLimit > 0) ? deviceLimit : DEFAULT_DEVICE_LIMIT;
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "SessionLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    // ==========================================================================
+
+
+    /**
+     * 开始新的会话，之前的会话结束。之后追加的记录写入这个会话
+     *
+     * @return 会话的第一个分片（还没有创建），用 {@link #sessionFiles} 得到所有分片
+     */
+    public File startSession(String address, String name, long time) {
+        final Control control = new Control(CONTROL_START);
+        control.address = address;
+        control.name = (name == null) ? address : name;
+        control.time = time;
+        synchronized (lock) {
+            sessionOpen = true;
+            submit(control);
+        }
+        return partFile(address, time, 0);
+    }
+
+    public void endSession(long time) {
+        final Control control = new Control(CONTROL_END);
+        control.time = time;
+        synchronized (lock) {
+            if (!sessionOpen) return;
+            sessionOpen = false;
+            submit(control);
+        }
+    }
+
+    /**
+     * 追加一行，没有会话时忽略。参数和 {@link LogBuffer#append} 相同
+     */
+    public void append(long time, int direction, int style, CharSequence text, CharSequence crc, int crcStatus) {
+        synchronized (lock) {
+            if (!sessionOpen) return;
+            final StringBuilder sb = pending;
+            final boolean wasEmpty = (sb.length() == 0);
+            final int crcLength = (crc == null) ? 0 : crc.length();
+            sb.append('L').append('\t').append(time)
+                    .append('\t').append(direction)
+                    .append('\t').append(style)
+                    .append('\t').append((crc == null) ? LogBuffer.CRC_NONE : crcStatus)
+                    .append('\t').append(crcLength).append('\t');
+            escape(sb, text);
+            if (crc != null) escape(sb, crc);
+            sb.append('\n');
+            // 写入线程只在缓冲区由空变为非空（开始计时）和积累够一批时需要唤醒
+            if (wasEmpty || sb.length() >= BATCH_CHARS) lock.notify();
+        }
+    }
+
+    /**
+     * 不再等待，尽快写入已追加的记录（Activity 进入后台时）
+     */
+    public void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * 写入已追加的记录，等待写入完成（进程随时可能被杀死时），最多等待 timeoutMs
+     *
+     * @return false - 超时
+     */
+    public boolean flushAndWait(long timeoutMs) {
+        final CountDownLatch written = new CountDownLatch(1);
+        afterWrites(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        try {
+            return written.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 后台读取 file 所在的会话的所有分片中的日志行，完成后 handler 收到 what 消息，obj 是 LogBuffer。
+     * 读取的行数和字符数不超过 limits 的上限，多出的是最旧的行
+     */
+    public void restore(File file, LogBuffer limits, Handler handler, int what) {
+        final Control control = new Control(CONTROL_RESTORE);
+        control.file = file;
+        control.into = new LogBuffer(limits.getMaxLines(), limits.getMaxChars());
+        control.handler = handler;
+        control.what = what;
+        synchronized (lock) {
+            submit(control);
+        }
+    }
+
+    /**
+     * 在写入线程中执行 task：在此之前追加的记录都已经写入文件
+     */
+    public void afterWrites(Runnable task) {
+        final Control control = new Control(CONTROL_TASK);
+        control.task = task;
+        synchronized (lock) {
+            submit(control);
+        }
+    }
+
+    /**
+     * 和 file 属于同一个会话的所有分片（还没有删除的），按顺序
+     */
+    public static List<File> sessionFiles(File file) {
+        final List<File> result = new ArrayList<File>();
+        final String name = file.getName();
+        final int split = name.lastIndexOf('_');
+        final File[] files = file.getParentFile().listFiles();
+        if (split < 0 || files == null) return result;
+        final String prefix = name.substring(0, split + 1);
+        Arrays.sort(files);
+        for (File f : files) {
+            if (f.getName().startsWith(prefix) && f.getName().endsWith(SUFFIX)) result.add(f);
+        }
+        return result;
+    }
+    // ==========================================================================
+
+
+    private void submit(Control control) {
+        control.at = pending.length();
+        controls.add(control);
+        lock.notify();
+    }
+
+    private void writeLoop() {
+        recover();
+        while (true) {
+            try {
+                synchronized (lock) {
+                    while (pending.length() == 0 && controls.isEmpty()) lock.wait();
+                    // 攒一批：控制操作和 flush() 不等待
+                    final long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+                    while (controls.isEmpty() && !flushRequested && pending.length() < BATCH_CHARS) {
+                        final long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) break;
+                        lock.wait(left);
+                    }
+                    flushRequested = false;
+                    final StringBuilder sb = writing;
+                    writing = pending;
+                    pending = sb;
+                    final List<Control> list = running;
+                    running = controls;
+                    controls = list;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            int from = 0;
+            for (Control control : running) {
+                write(writing, from, control.at);
+                from = control.at;
+                execute(control);
+            }
+            write(writing, from, writing.length());
+            rotateIfFull();
+            writing.setLength(0);
+            running.clear();
+        }
+    }
+
+    private void execute(Control control) {
+        switch (control.type) {
+            case CONTROL_START:
+                close(END_CLOSED, control.time);
+                sessionStart = control.time;
+                address = control.address;
+                name = control.name;
+                part = 0;
+                open(control.time);
+                break;
+            case CONTROL_END:
+                close(END_CLOSED, control.time);
+                break;
+            case CONTROL_RESTORE:
+                readSession(control.file, control.into);
+                control.handler.obtainMessage(control.what, control.into).sendToTarget();
+                break;
+            case CONTROL_TASK:
+                control.task.run();
+                break;
+        }
+    }
+    // ==========================================================================
+
+
+    private void open(long time) {
+        final File file = partFile(address, sessionStart, part);
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Utils.log("SessionLog: cannot create " + dir);
+            return;
+        }
+        try {
+            out = new FileOutputStream(file, true);
+            channel = out.getChannel();
+            fileSize = channel.size();
+            writeMarker(file);
+            final StringBuilder header = new StringBuilder(64);
+            header.append('S').append('\t').append(time).append('\t').append(part)
+                    .append('\t').append(address).append('\t');
+            escape(header, name);
+            write(header.append('\n'), 0, header.length());
+        } catch (IOException e) {
+            Utils.loge("SessionLog: cannot open " + file, e);
+            closeQuietly();
+        }
+        trim(dir, file);
+    }
+
+    private void close(String reason, long time) {
+        if (channel == null) return;
+        final StringBuilder end = new StringBuilder(32);
+        end.append('E').append('\t').append(time).append('\t').append(reason).append('\n');
+        write(end, 0, end.length());
+        closeQuietly();
+        if (!END_ROTATED.equals(reason)) {
+            new File(root, CURRENT).delete();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException e) {
+            Utils.loge("SessionLog: close failed", e);
+        }
+        out = null;
+        channel = null;
+    }
+
+    /**
+     * 编码为 UTF-8 写入当前文件
+     */
+    private void write(CharSequence text, int start, int end) {
+        if (channel == null || start >= end) return;
+        try {
+            final CharBuffer chars = CharBuffer.wrap(text, start, end);
+            encoder.reset();
+            while (true) {
+                final CoderResult result = encoder.encode(chars, bytes, true);
+                if (result.isOverflow()) {
+                    drain();
+                    continue;
+                }
+                if (result.isError()) {
+                    // 不成对的代理字符：跳过
+                    chars.position(chars.position() + result.length());
+                    continue;
+                }
+                break;
+            }
+            while (encoder.flush(bytes).isOverflow()) drain();
+            drain();
+        } catch (IOException e) {
+            Utils.loge("SessionLog: write failed", e);
+            closeQuietly();
+        }
+    }
+
+    /**
+     * 超过 fileLimit 后换到下一个分片。只在一批记录之后检查，记录不会被拆开
+     */
+    private void rotateIfFull() {
+        if (channel == null || fileSize < fileLimit) return;
+        final long now = System.currentTimeMillis();
+        close(END_ROTATED, now);
+        part++;
+        open(now);
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) fileSize += channel.write(bytes);
+        bytes.clear();
+    }
+
+    private void writeMarker(File file) throws IOException {
+        final FileOutputStream marker = new FileOutputStream(new File(root, CURRENT));
+        try {
+            marker.write(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            marker.close();
+        }
+    }
+
+    /**
+     * 一个设备的文件总大小超过 deviceLimit 时删除最旧的，正在写入的除外
+     */
+    private void trim(File dir, File keep) {
+        final File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        long total = 0;
+        for (File file : files) total += file.length();
+        for (int i = 0; i < files.length && total > deviceLimit; i++) {
+            if (files[i].equals(keep) || !files[i].getName().endsWith(SUFFIX)) continue;
+            final long length = files[i].length();
+            if (files[i].delete()) total -= length;
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * 上次进程没有正常结束会话：截掉最后一条不完整的记录，补上结束记录
+     */
+    private void recover() {
+        final File marker = new File(root, CURRENT);
+        if (!marker.isFile()) return;
+        try {
+            final File file = new File(readMarker(marker));
+            if (file.isFile()) {
+                final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(lastRecordEnd(raf));
+                    raf.seek(raf.length());
+                    final String end = "E\t" + file.lastModified() + "\t" + END_RECOVERED + "\n";
+                    raf.write(end.getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException e) {
+            Utils.loge("SessionLog: recovery failed", e);
+        }
+        marker.delete();
+    }
+
+    private static String readMarker(File marker) throws IOException {
+        final byte[] data = new byte[(int) marker.length()];
+        final FileInputStream in = new FileInputStream(marker);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(data, 0, read, StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 最后一个 '\n' 之后的位置
+     */
+    private static long lastRecordEnd(RandomAccessFile raf) throws IOException {
+        final byte[] block = new byte[4096];
+        long end = raf.length();
+        while (end > 0) {
+            final int size = (int) Math.min(block.length, end);
+            raf.seek(end - size);
+            raf.readFully(block, 0, size);
+            for (int i = size - 1; i >= 0; i--) {
+                if (block[i] == '\n') return end - size + i + 1;
+            }
+            end -= size;
+        }
+        return 0;
+    }
+    // ==========================================================================
+
+
+    /**
+     * 读取会话的分片：从最新的开始向前读，into 满了以后不再读更旧的分片
+     */
+    private static void readSession(File file, LogBuffer into) {
+        if (file == null) return;
+        final List<File> parts = sessionFiles(file);
+        if (parts.isEmpty() || read(parts.get(parts.size() - 1), into)) return;
+        for (int i = parts.size() - 2; i >= 0; i--) {
+            final LogBuffer older = new LogBuffer(into.getMaxLines(), into.getMaxChars());
+            final boolean full = read(parts.get(i), older);
+            final int before = into.size();
+            into.prepend(older);
+            // 放不下的最旧的行已经丢弃，更旧的分片也放不下
+            if (full || into.size() < before + older.size()) return;
+        }
+    }
+
+    /**
+     * 读取文件中的日志行，格式不对的记录被跳过
+     *
+     * @return 超出 into 的上限，有行被丢弃
+     */
+    private static boolean read(File file, LogBuffer into) {
+        if (!file.isFile()) return false;
+        final Record line = new Record();
+        boolean dropped = false;
+        try {
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 16 * 1024);
+            try {
+                String record;
+                while ((record = reader.readLine()) != null) {
+                    if (!parse(record, line)) continue;
+                    final int split = line.textLength();
+                    if (into.append(line.time, line.direction, line.style, line.text.subSequence(0, split),
+                            (line.crcStatus == LogBuffer.CRC_NONE) ? null : line.text.subSequence(split, line.text.length()),
+                            line.crcStatus) > 0) {
+                        dropped = true;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Utils.loge("SessionLog: cannot read " + file, e);
+        }
+        return dropped;
+    }
+
+    /**
+     * 解析一条记录
+     *
+     * @return false - 不是日志行或者不完整
+     */
+    static boolean parse(String record, Record out) {
+        if (record.length() < 2 || record.charAt(0) != 'L') return false;
+        final String[] fields = record.split("\t", 7);
+        if (fields.length != 7) return false;
+        try {
+            out.time = Long.parseLong(fields[1]);
+            out.direction = Integer.parseInt(fields[2]);
+            out.style = Integer.parseInt(fields[3]);
+            out.crcStatus = Integer.parseInt(fields[4]);
+            out.crcLength = Integer.parseInt(fields[5]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        out.text.setLength(0);
+        unescape(out.text, fields[6]);
+        return true;
+    }
+
+    private File partFile(String address, long start, int part) {
+        return new File(new File(root, deviceDir(address)), String.format(Locale.US, "%016d_%03d%s", start, part, SUFFIX));
+    }
+
+    private static String deviceDir(String address) {
+        final StringBuilder sb = new StringBuilder(12);
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (Character.isLetterOrDigit(c)) sb.append(Character.toUpperCase(c));
+        }
+        return (sb.length() == 0) ? "unknown" : sb.toString();
+    }
+
+    private static void escape(StringBuilder sb, CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append('\\').append('\\');
+                    break;
+                case '\t':
+                    sb.append('\\').append('t');
+                    break;
+                case '\r':
+                    sb.append('\\').append('r');
+                    break;
+                case '\n':
+                    sb.append('\\').append('n');
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+    }
+
+    private static void unescape(StringBuilder sb, String text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < length) {
+                c = text.charAt(++i);
+                if (c == 't') c = '\t';
+                else if (c == 'r') c = '\r';
+                else if (c == 'n') c = '\n';
+            }
+            sb.append(c);
+        }
+    }
+}
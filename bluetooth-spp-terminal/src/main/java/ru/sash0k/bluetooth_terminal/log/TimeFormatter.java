@@ -0,0 +1,74 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import java.util.TimeZone;
+
+/**
+ * 本地时间格式化为 "HH:mm:ss.SSS"，不创建对象
+ * 时区偏移按 15 分钟缓存（偏移和切换时间都是 15 分钟的倍数）：只有时间离开缓存的区间才重新查询 TimeZone。
+ * 实例不是线程安全的，每个线程（或者每个使用者）一个。
+ */
+public final class TimeFormatter {
+    // "HH:mm:ss.SSS" 的字符数
+    public static final int LENGTH = 12;
+
+    private static final long QUARTER = 15 * 60 * 1000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private TimeZone zone = TimeZone.getDefault();
+    // 缓存的区间 [cachedStart, cachedStart + QUARTER) 和其中的时区偏移
+    private long cachedStart = Long.MAX_VALUE;
+    private int offset;
+    private final char[] chars = new char[LENGTH];
+    // ==========================================================================
+
+
+    /**
+     * 系统时区改变后调用
+     */
+    public void setTimeZone(TimeZone zone) {
+        this.zone = zone;
+        this.cachedStart = Long.MAX_VALUE;
+    }
+
+    /**
+     * 写入 out[outOffset]
+     *
+     * @return 写入的字符数 LENGTH
+     */
+    public int format(long millis, char[] out, int outOffset) {
+        if (millis < cachedStart || millis - cachedStart >= QUARTER) {
+            cachedStart = millis - floorMod(millis, QUARTER);
+            offset = zone.getOffset(millis);
+        }
+        final int ms = (int) floorMod(millis + offset, DAY);
+        final int hours = ms / 3600000;
+        final int minutes = ms / 60000 % 60;
+        final int seconds = ms / 1000 % 60;
+        final int fraction = ms % 1000;
+        out[outOffset] = (char) ('0' + hours / 10);
+        out[outOffset + 1] = (char) ('0' + hours % 10);
+        out[outOffset + 2] = ':';
+        out[outOffset + 3] = (char) ('0' + minutes / 10);
+        out[outOffset + 4] = (char) ('0' + minutes % 10);
+        out[outOffset + 5] = ':';
+        out[outOffset + 6] = (char) ('0' + seconds / 10);
+        out[outOffset + 7] = (char) ('0' + seconds % 10);
+        out[outOffset + 8] = '.';
+        out[outOffset + 9] = (char) ('0' + fraction / 100);
+        out[outOffset + 10] = (char) ('0' + fraction / 10 % 10);
+        out[outOffset + 11] = (char) ('0' + fraction % 10);
+        return LENGTH;
+    }
+
+    public StringBuilder append(StringBuilder sb, long millis) {
+        format(millis, chars, 0);
+        return sb.append(chars, 0, LENGTH);
+    }
+    // ==========================================================================
+
+
+    private static long floorMod(long x, long y) {
+        final long mod = x % y;
+        return (mod < 0) ? mod + y : mod;
+    }
+}
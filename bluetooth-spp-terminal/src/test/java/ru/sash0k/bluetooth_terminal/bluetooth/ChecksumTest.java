@@ -0,0 +1,91 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checksum：标准的检验值 "123456789"、链路上的字节顺序和文本模式的检查
+ */
+public class ChecksumTest {
+
+    private static final byte[] CHECK = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    private static int compute(String name) {
+        return Checksum.forName(name).compute(CHECK, 0, CHECK.length);
+    }
+
+    private static boolean verify(String name, String line) {
+        final byte[] data = line.getBytes(StandardCharsets.US_ASCII);
+        return Checksum.forName(name).verifyHex(data, 0, data.length);
+    }
+
+    private static String hex(String name, int value) {
+        final Checksum checksum = Checksum.forName(name);
+        final byte[] out = new byte[checksum.digits()];
+        checksum.writeHex(value, out, 0);
+        return new String(out, StandardCharsets.US_ASCII);
+    }
+    // ==========================================================================
+
+
+    @Test
+    public void checkValues() {
+        assertEquals(0xDD, compute(Checksum.MODULO_256));
+        assertEquals(0x31, compute(Checksum.XOR));
+        assertEquals(0xF4, compute(Checksum.CRC_8));
+        assertEquals(0x4B37, compute(Checksum.CRC_16_MODBUS));
+        assertEquals(0xCBF43926, compute(Checksum.CRC_32));
+    }
+
+    @Test
+    public void incrementalEqualsCompute() {
+        final Checksum crc = Checksum.forName(Checksum.CRC_32);
+        int state = crc.init();
+        state = crc.update(state, CHECK, 0, 4);
+        state = crc.update(state, CHECK, 4, CHECK.length - 4);
+        assertEquals(0xCBF43926, crc.finish(state));
+    }
+
+    @Test
+    public void byteOrder() {
+        // CRC-16/MODBUS 低字节在前，其它高字节在前
+        assertEquals("374B", hex(Checksum.CRC_16_MODBUS, 0x4B37));
+        assertEquals("CBF43926", hex(Checksum.CRC_32, 0xCBF43926));
+        final byte[] out = new byte[2];
+        Checksum.forName(Checksum.CRC_16_MODBUS).writeBytes(0x4B37, out, 0);
+        assertEquals(0x37, out[0] & 0xFF);
+        assertEquals(0x4B, out[1] & 0xFF);
+    }
+
+    @Test
+    public void verifyHexLine() {
+        assertTrue(verify(Checksum.CRC_16_MODBUS, "123456789374B"));
+        // 结尾的空白和控制字符被忽略，hex 不区分大小写
+        assertTrue(verify(Checksum.CRC_16_MODBUS, "123456789374b \r"));
+        assertFalse(verify(Checksum.CRC_16_MODBUS, "123456789374C"));
+        assertFalse(verify(Checksum.CRC_16_MODBUS, "12345678937XB"));
+        assertTrue(verify(Checksum.CRC_8, "123456789F4"));
+    }
+
+    @Test
+    public void hexStartOfShortLine() {
+        final Checksum crc = Checksum.forName(Checksum.CRC_32);
+        final byte[] line = "ABC  ".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(-1, crc.hexStart(line, 0, line.length));
+        assertFalse(crc.verifyHex(line, 0, line.length));
+        final byte[] data = "xx12345678".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(2, crc.hexStart(data, 0, data.length));
+    }
+
+    @Test
+    public void unknownNames() {
+        assertNull(Checksum.forName(Checksum.NONE));
+        assertNull(Checksum.forName("CRC-64"));
+    }
+}
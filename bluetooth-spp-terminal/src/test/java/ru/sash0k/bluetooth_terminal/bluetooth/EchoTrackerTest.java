@@ -0,0 +1,122 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EchoTracker：连续发送的命令、回显顺序和折行回显
+ */
+public class EchoTrackerTest {
+
+    private final EchoTracker tracker = new EchoTracker();
+
+    private void sent(String command) {
+        final byte[] data = (command + "\r").getBytes(StandardCharsets.UTF_8);
+        tracker.expect(data, 0, data.length, 0);
+    }
+
+    private boolean echo(String line) {
+        return echo(line, 0);
+    }
+
+    private boolean echo(String line, long nowNanos) {
+        final byte[] data = line.getBytes(StandardCharsets.UTF_8);
+        return tracker.isEcho(data, 0, data.length, nowNanos);
+    }
+    // ==========================================================================
+
+
+    @Test
+    public void pipelinedCommands() {
+        sent("show ver");
+        sent("show interfaces");
+        assertTrue(echo("Switch# show ver"));
+        assertFalse(echo("Version 1.0"));
+        assertTrue(echo("Switch# show interfaces"));
+        assertFalse(echo("Switch# show interfaces"));
+    }
+
+    @Test
+    public void multipleCommandsInOneWrite() {
+        final byte[] data = "show ver\r\nshow clock\r\n".getBytes(StandardCharsets.UTF_8);
+        tracker.expect(data, 0, data.length, 0);
+        assertTrue(echo("# show ver"));
+        assertTrue(echo("# show clock"));
+    }
+
+    @Test
+    public void lostEchoIsSkippedByLaterMatch() {
+        sent("show ver");
+        sent("show clock");
+        // 第一条命令的回显丢失：第二条匹配时一起出队
+        assertTrue(echo("# show clock"));
+        assertFalse(echo("# show ver"));
+    }
+
+    @Test
+    public void bareLineMatchesOnlyOldest() {
+        sent("show ver");
+        sent("show interfaces");
+        // 设备的输出恰好以后面的命令结尾：没有提示符，不是回显
+        assertFalse(echo("show interfaces"));
+        assertFalse(echo("sh show interfaces"));
+        assertFalse(echo(" show interfaces"));
+        assertTrue(echo("sho show ver"));
+        // 现在是最旧的命令，没有提示符也可以匹配
+        assertTrue(echo("show interfaces"));
+    }
+
+    @Test
+    public void completionArtifacts() {
+        sent("show interfaces status");
+        assertTrue(echo("Switch# sho show inter show interfaces status"));
+    }
+
+    @Test
+    public void outputIsNotArtifacts() {
+        sent("show ver");
+        // "uptime" 不是命令中任何单词的开头
+        assertFalse(echo("# uptime show ver"));
+    }
+
+    @Test
+    public void wrappedEcho() {
+        sent("show running-config interface gi1/0/1");
+        assertTrue(echo("Switch# show running-conf"));
+        assertTrue(echo("ig interface gi1/0/1"));
+        assertFalse(echo("Building configuration..."));
+    }
+
+    @Test
+    public void wrappedEchoOfLaterCommand() {
+        sent("show ver");
+        sent("show running-config interface gi1/0/1");
+        assertTrue(echo("Switch# show running-conf"));
+        assertTrue(echo("ig interface gi1/0/1"));
+        // 前面的命令已经出队
+        assertFalse(echo("# show ver"));
+    }
+
+    @Test
+    public void lineEditingAndCase() {
+        sent("show ver");
+        assertTrue(echo("# SHW\b\bhow  VER"));
+    }
+
+    @Test
+    public void expiredCommandIsDropped() {
+        sent("show ver");
+        assertFalse(echo("# show ver", EchoTracker.ECHO_TIMEOUT_NANOS + 1));
+    }
+
+    @Test
+    public void clearDropsPending() {
+        sent("show ver");
+        tracker.clear();
+        assertFalse(echo("# show ver"));
+    }
+}
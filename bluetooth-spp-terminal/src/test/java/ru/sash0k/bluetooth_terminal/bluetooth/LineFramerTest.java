@@ -0,0 +1,116 @@
+package ru.sash0k.bluetooth_terminal.bluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LineFramer：分隔符、强制切开、提示符和环形缓冲区的末尾
+ */
+public class LineFramerTest {
+
+    private final List<String> lines = new ArrayList<String>();
+    private final List<Integer> ends = new ArrayList<Integer>();
+    private final LineFramer framer = new LineFramer(new LineFramer.Listener() {
+        @Override
+        public void onLine(byte[] data, int offset, int length, int end, long arrivalNanos) {
+            lines.add(new String(data, offset, length, StandardCharsets.ISO_8859_1));
+            ends.add(end);
+        }
+    });
+
+    /**
+     * 像接收线程一样按 writableLength() 分次写入
+     */
+    private void feed(String text) {
+        final byte[] data = text.getBytes(StandardCharsets.ISO_8859_1);
+        int pos = 0;
+        while (pos < data.length) {
+            final int n = Math.min(framer.writableLength(), data.length - pos);
+            System.arraycopy(data, pos, framer.buffer(), framer.writeOffset(), n);
+            framer.commit(n, n, 0);
+            pos += n;
+        }
+    }
+    // ==========================================================================
+
+
+    @Test
+    public void lineSplitAcrossReads() {
+        feed("ab");
+        assertTrue(lines.isEmpty());
+        feed("c\nde\n");
+        assertEquals(2, lines.size());
+        assertEquals("abc", lines.get(0));
+        assertEquals("de", lines.get(1));
+        assertEquals(LineFramer.END_DELIMITER, (int) ends.get(0));
+        assertFalse(framer.hasPending());
+    }
+
+    @Test
+    public void crlfKeepsLoneCr() {
+        framer.configure(LineFramer.DELIMITER_CRLF, 0, LineFramer.DEFAULT_IDLE_GAP);
+        feed("a\rb\r");
+        feed("\nc\r\n");
+        assertEquals(2, lines.size());
+        assertEquals("a\rb", lines.get(0));
+        assertEquals("c", lines.get(1));
+    }
+
+    @Test
+    public void nulDelimiter() {
+        framer.configure(LineFramer.DELIMITER_NUL, 0, LineFramer.DEFAULT_IDLE_GAP);
+        feed("one\0two\0");
+        assertEquals(2, lines.size());
+        assertEquals("two", lines.get(1));
+    }
+
+    @Test
+    public void longLineIsSplit() {
+        framer.configure(LineFramer.DELIMITER_LF, LineFramer.MIN_LINE_LENGTH, LineFramer.DEFAULT_IDLE_GAP);
+        feed("0123456789abcdefXYZ\n");
+        assertEquals(2, lines.size());
+        assertEquals("0123456789abcdef", lines.get(0));
+        assertEquals(LineFramer.END_SPLIT, (int) ends.get(0));
+        assertEquals("XYZ", lines.get(1));
+        assertEquals(LineFramer.END_DELIMITER, (int) ends.get(1));
+    }
+
+    @Test
+    public void promptIsFlushed() {
+        feed("Switch# ");
+        assertTrue(framer.pendingIsPrompt());
+        framer.flush();
+        assertEquals("Switch# ", lines.get(0));
+        assertEquals(LineFramer.END_FLUSH, (int) ends.get(0));
+        assertFalse(framer.hasPending());
+
+        feed("partial output");
+        assertFalse(framer.pendingIsPrompt());
+    }
+
+    @Test
+    public void linesWrappingTheRing() {
+        // 总长度超过环形缓冲区，部分行跨越缓冲区末尾
+        final StringBuilder expected = new StringBuilder();
+        final StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            final String line = "line " + i + " " + "x".substring(0, i % 2);
+            expected.append(line).append('|');
+            input.append(line).append('\n');
+        }
+        // 留一行未完成，下一次写入时补齐
+        feed(input.toString() + "tail");
+        feed(" end\n");
+        final StringBuilder actual = new StringBuilder();
+        for (int i = 0; i < 2000; i++) actual.append(lines.get(i)).append('|');
+        assertEquals(expected.toString(), actual.toString());
+        assertEquals("tail end", lines.get(2000));
+    }
+}
@@ -0,0 +1,115 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LogBuffer.prepend() 和恢复后的搜索
+ */
+public class LogBufferTest {
+
+    private static LogBuffer lines(int maxLines, String... texts) {
+        final LogBuffer buffer = new LogBuffer(maxLines, 0);
+        for (String text : texts) {
+            buffer.append(0, LogBuffer.DIRECTION_IN, LogBuffer.STYLE_NORMAL, text, null, LogBuffer.CRC_NONE);
+        }
+        return buffer;
+    }
+
+    private static String text(LogBuffer buffer, int index) {
+        return buffer.appendText(index, new StringBuilder()).toString();
+    }
+
+    private static SearchIndex.Result search(SearchIndex index, String query) throws InterruptedException {
+        final BlockingQueue<SearchIndex.Result> results = new ArrayBlockingQueue<SearchIndex.Result>(1);
+        index.query(query, new SearchIndex.Listener() {
+            @Override
+            public void onSearchResult(SearchIndex.Result result) {
+                results.add(result);
+            }
+        });
+        final SearchIndex.Result result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no search result", result);
+        return result;
+    }
+    // ==========================================================================
+
+
+    @Test
+    public void prependKeepsOrderAndSequences() {
+        // 最旧的两行被丢弃，现有的行前面有两个空出的序号
+        final LogBuffer buffer = lines(3, "c1", "c2", "c3", "c4", "c5");
+        assertEquals(2, buffer.getSequence(0));
+        buffer.setLimits(10, 0);
+
+        assertFalse(buffer.prepend(lines(10, "o1", "o2")));
+        assertEquals(5, buffer.size());
+        assertEquals("o1", text(buffer, 0));
+        assertEquals("c3", text(buffer, 2));
+        assertEquals(0, buffer.getSequence(0));
+        assertEquals(4, buffer.getSequence(4));
+    }
+
+    @Test
+    public void prependRebasesInsteadOfNegativeSequences() {
+        final LogBuffer buffer = lines(10, "current one", "current two");
+        assertTrue(buffer.prepend(lines(10, "old one", "old two", "old three")));
+
+        assertEquals(5, buffer.size());
+        assertEquals("old one", text(buffer, 0));
+        assertEquals("current two", text(buffer, 4));
+        for (int i = 0; i < buffer.size(); i++) assertEquals(i, buffer.getSequence(i));
+        assertEquals(3, buffer.indexOf(3));
+    }
+
+    @Test
+    public void prependDropsOldestOverLimit() {
+        final LogBuffer buffer = lines(4, "c1", "c2", "c3");
+        buffer.prepend(lines(10, "o1", "o2", "o3"));
+
+        assertEquals(4, buffer.size());
+        assertEquals("o3", text(buffer, 0));
+        assertEquals("c3", text(buffer, 3));
+        assertTrue(buffer.getSequence(0) >= 0);
+    }
+
+    @Test
+    public void restoredLinesAreSearchable() throws InterruptedException {
+        final LogBuffer buffer = lines(10, "uptime 42", "version 1.3");
+        buffer.prepend(lines(10, "boot ok", "version 1.2"));
+
+        final SearchIndex index = new SearchIndex();
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < buffer.size(); i++) {
+            text.setLength(0);
+            index.add(buffer.getSequence(i), buffer.appendText(i, text));
+        }
+
+        final SearchIndex.Result result = search(index, "VERSION");
+        assertArrayEquals(new long[]{1, 3}, result.matches);
+        // 序号 0 的行（base 为 0）同样能找到
+        assertArrayEquals(new long[]{0}, search(index, "boot").matches);
+        assertEquals(0, search(index, "missing").matches.length);
+    }
+
+    @Test
+    public void searchAfterClearStartsFromZero() throws InterruptedException {
+        final SearchIndex index = new SearchIndex();
+        index.add(100, "first session");
+        assertArrayEquals(new long[]{100}, search(index, "session").matches);
+
+        index.clear();
+        assertEquals(0, search(index, "session").matches.length);
+        index.add(0, "second session");
+        assertArrayEquals(new long[]{0}, search(index, "session").matches);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.sash0k.bluetooth_terminal.log;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * SearchIndex 在后台线程中确认的结果
+ */
+public class SearchIndexTest {
+
+    private static SearchIndex.Result search(SearchIndex index, String query) throws InterruptedException {
+        final BlockingQueue<SearchIndex.Result> results = new ArrayBlockingQueue<SearchIndex.Result>(1);
+        index.query(query, new SearchIndex.Listener() {
+            @Override
+            public void onSearchResult(SearchIndex.Result result) {
+                results.add(result);
+            }
+        });
+        final SearchIndex.Result result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no search result", result);
+        return result;
+    }
+    // ==========================================================================
+
+
+    @Test
+    public void candidatesAreConfirmed() throws InterruptedException {
+        final SearchIndex index = new SearchIndex();
+        // 第 0 行包含 "abc" 和 "bcd" 但不包含 "abcd"
+        index.add(0, "abc xbcd");
+        index.add(1, "ABCD");
+        index.add(2, "zabcdz");
+        assertArrayEquals(new long[]{1, 2}, search(index, "abcd").matches);
+    }
+
+    @Test
+    public void shortQueryChecksAllLines() throws InterruptedException {
+        final SearchIndex index = new SearchIndex();
+        index.add(5, "ok");
+        index.add(6, "error");
+        index.add(7, "OK!");
+        assertArrayEquals(new long[]{5, 7}, search(index, "ok").matches);
+        assertArrayEquals(new long[]{6}, search(index, "R").matches);
+    }
+
+    @Test
+    public void evictedLinesAreSkipped() throws InterruptedException {
+        final SearchIndex index = new SearchIndex();
+        for (int i = 0; i < 3000; i++) index.add(i, "line " + i);
+        index.evictBefore(2500);
+        // 足够多的行被丢弃后回收空间，之后加入的行仍然能找到
+        index.add(3000, "line 3000");
+        assertArrayEquals(new long[]{2999}, search(index, "line 2999").matches);
+        assertArrayEquals(new long[]{3000}, search(index, "line 3000").matches);
+        assertArrayEquals(new long[0], search(index, "line 10").matches);
+        assertArrayEquals(new long[]{2510}, search(index, "2510").matches);
+    }
+}